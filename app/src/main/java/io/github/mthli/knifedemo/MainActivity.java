@@ -3,6 +3,7 @@ package io.github.mthli.knifedemo;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.view.ActionMode;
@@ -12,6 +13,7 @@ import android.view.View;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import io.github.mthli.knife.FormatState;
 import io.github.mthli.knife.Knife;
 import io.github.mthli.knife.Span;
 
@@ -36,7 +38,21 @@ public class MainActivity extends Activity {
         textView = findViewById(R.id.text);
 
         knife = new Knife(textView);
-        knife.setHtml(EXAMPLE);
+        knife.setHtmlAsync(EXAMPLE, AsyncTask.THREAD_POOL_EXECUTOR);
+
+        setButton(R.id.undo, R.string.toast_undo, new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                knife.undo();
+            }
+        });
+
+        setButton(R.id.redo, R.string.toast_redo, new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                knife.redo();
+            }
+        });
 
         // Regular style controls
         setFormatButton(R.id.bold, R.string.toast_bold, Knife.BOLD);
@@ -106,16 +122,16 @@ public class MainActivity extends Activity {
         });
 
 
-        knife.setSelectionListener(new Knife.OnSelectionChangedListener() {
+        knife.setFormatListener(new Knife.OnFormatChangedListener() {
             @Override
-            public void onSelectionChanged() {
-                toggleButton(R.id.bold, knife.has(Knife.BOLD));
-                toggleButton(R.id.italic, knife.has(Knife.ITALIC));
-                toggleButton(R.id.underline, knife.has(Knife.UNDERLINE));
-                toggleButton(R.id.strikethrough, knife.has(Knife.STRIKE));
-                toggleButton(R.id.bullet, knife.has(Knife.BULLET));
-                toggleButton(R.id.quote, knife.has(Knife.QUOTE));
-                toggleButton(R.id.link, knife.has(Knife.URL));
+            public void onFormatChanged(FormatState state) {
+                toggleButton(R.id.bold, state.has(Knife.BOLD));
+                toggleButton(R.id.italic, state.has(Knife.ITALIC));
+                toggleButton(R.id.underline, state.has(Knife.UNDERLINE));
+                toggleButton(R.id.strikethrough, state.has(Knife.STRIKE));
+                toggleButton(R.id.bullet, state.has(Knife.BULLET));
+                toggleButton(R.id.quote, state.has(Knife.QUOTE));
+                toggleButton(R.id.link, state.has(Knife.URL));
             }
         });
     }
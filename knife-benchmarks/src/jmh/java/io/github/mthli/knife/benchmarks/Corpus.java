@@ -0,0 +1,216 @@
+package io.github.mthli.knife.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates HTML documents of different shapes, same seed always gives same document.
+ */
+final class Corpus {
+
+    enum Shape {
+        /** Plain text paragraphs with line breaks. */
+        PLAIN,
+        /** Words wrapped into bold, italic, underline and strike tags, sometimes nested. */
+        INLINE,
+        /** Long bullet lists with many struck out items. */
+        LIST,
+        /** Quotes inside bullets and bullets inside quotes. */
+        NESTED,
+        /** Text where most of the words are links. */
+        LINKS,
+        /** CJK text with emoji, written back as character references. */
+        CJK_EMOJI,
+        /** All of the above, alternating between blocks, as in a typical note. */
+        MIXED
+    }
+
+    private static final String[] INLINE_TAGS = { "b", "i", "u", "del" };
+    private static final int[] EMOJI = { 0x1F600, 0x1F44D, 0x1F389, 0x2764, 0x1F680 };
+
+    private final Random random;
+    private final StringBuilder out = new StringBuilder();
+
+    private Corpus(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Returns HTML with roughly given number of chars.
+     */
+    static String html(Shape shape, int size) {
+        return new Corpus(shape.ordinal()).generate(shape, size);
+    }
+
+    private String generate(Shape shape, int size) {
+        while (out.length() < size) {
+            switch (shape) {
+                case PLAIN:
+                    paragraph(false);
+                    out.append("<br>");
+                    break;
+                case INLINE:
+                    paragraph(true);
+                    out.append("<br>");
+                    break;
+                case LIST:
+                    list(20 + random.nextInt(30));
+                    break;
+                case NESTED:
+                    nested();
+                    break;
+                case LINKS:
+                    links();
+                    out.append("<br>");
+                    break;
+                case CJK_EMOJI:
+                    cjk();
+                    out.append("<br>");
+                    break;
+                case MIXED:
+                    mixed();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown shape: " + shape);
+            }
+        }
+        return out.toString();
+    }
+
+    private void paragraph(boolean styled) {
+        final int words = 10 + random.nextInt(30);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                out.append(' ');
+            }
+            if (styled && random.nextInt(3) == 0) {
+                final String outer = INLINE_TAGS[random.nextInt(INLINE_TAGS.length)];
+                final String inner = random.nextInt(4) == 0
+                        ? INLINE_TAGS[random.nextInt(INLINE_TAGS.length)] : null;
+                open(outer);
+                if (inner != null) {
+                    open(inner);
+                }
+                word();
+                if (inner != null) {
+                    close(inner);
+                }
+                close(outer);
+            } else {
+                word();
+            }
+        }
+    }
+
+    private void list(int items) {
+        out.append("<ul>");
+        for (int i = 0; i < items; i++) {
+            out.append("<li>");
+            final boolean struck = random.nextInt(3) != 0;
+            if (struck) {
+                open("del");
+            }
+            final int words = 2 + random.nextInt(8);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    out.append(' ');
+                }
+                word();
+            }
+            if (struck) {
+                close("del");
+            }
+            out.append("</li>");
+        }
+        out.append("</ul>");
+    }
+
+    private void nested() {
+        if (random.nextBoolean()) {
+            out.append("<blockquote>");
+            list(2 + random.nextInt(5));
+            out.append("</blockquote>");
+        } else {
+            out.append("<ul>");
+            final int items = 2 + random.nextInt(5);
+            for (int i = 0; i < items; i++) {
+                out.append("<li><blockquote>");
+                paragraph(false);
+                out.append("</blockquote></li>");
+            }
+            out.append("</ul>");
+        }
+        paragraph(false);
+        out.append("<br>");
+    }
+
+    private void links() {
+        final int words = 10 + random.nextInt(20);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                out.append(' ');
+            }
+            if (random.nextInt(4) != 0) {
+                out.append("<a href=\"https://example.com/");
+                word();
+                out.append("?id=").append(random.nextInt(1000)).append("&amp;ref=knife\">");
+                word();
+                out.append("</a>");
+            } else {
+                word();
+            }
+        }
+    }
+
+    private void cjk() {
+        final int chars = 20 + random.nextInt(60);
+        for (int i = 0; i < chars; i++) {
+            final int r = random.nextInt(10);
+            if (r == 0) {
+                out.appendCodePoint(EMOJI[random.nextInt(EMOJI.length)]);
+            } else if (r == 1) {
+                out.append(' ');
+            } else {
+                out.append((char) (0x4E00 + random.nextInt(0x5000)));
+            }
+        }
+    }
+
+    private void mixed() {
+        switch (random.nextInt(6)) {
+            case 0:
+                list(3 + random.nextInt(8));
+                break;
+            case 1:
+                nested();
+                break;
+            case 2:
+                links();
+                out.append("<br>");
+                break;
+            case 3:
+                cjk();
+                out.append("<br>");
+                break;
+            default:
+                paragraph(true);
+                out.append("<br>");
+                break;
+        }
+    }
+
+    private void word() {
+        final int length = 2 + random.nextInt(8);
+        for (int i = 0; i < length; i++) {
+            out.append((char) ('a' + random.nextInt(26)));
+        }
+    }
+
+    private void open(String tag) {
+        out.append('<').append(tag).append('>');
+    }
+
+    private void close(String tag) {
+        out.append("</").append(tag).append('>');
+    }
+
+}
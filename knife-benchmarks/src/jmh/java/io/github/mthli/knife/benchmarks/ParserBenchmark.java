@@ -0,0 +1,58 @@
+package io.github.mthli.knife.benchmarks;
+
+import io.github.mthli.knife.KnifeDocument;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * HTML parsing and serialization of generated documents, see {@link Corpus.Shape} for the shapes.
+ * Allocation rate is reported by the gc profiler configured in build.gradle.
+ */
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    @Param({ "PLAIN", "INLINE", "LIST", "NESTED", "LINKS", "CJK_EMOJI" })
+    public String shape;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    private String html;
+    private KnifeDocument document;
+    private final StringBuilder buffer = new StringBuilder();
+
+    @Setup
+    public void setup() {
+        html = Corpus.html(Corpus.Shape.valueOf(shape), size);
+        document = KnifeDocument.fromHtml(html);
+    }
+
+    @Benchmark
+    public KnifeDocument fromHtml() {
+        return KnifeDocument.fromHtml(html);
+    }
+
+    @Benchmark
+    public String toHtml() {
+        return document.getHtml();
+    }
+
+    @Benchmark
+    public int writeHtml() throws IOException {
+        buffer.setLength(0);
+        document.writeHtml(buffer);
+        return buffer.length();
+    }
+
+    @Benchmark
+    public String roundTrip() {
+        return KnifeDocument.fromHtml(html).getHtml();
+    }
+
+}
@@ -0,0 +1,57 @@
+package io.github.mthli.knife.benchmarks;
+
+import io.github.mthli.knife.FormatState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays generated typing session, one event per invocation. Sample time mode reports latency
+ * percentiles per event and the gc profiler reports bytes allocated per event.
+ * See {@link TypingReplay} for a breakdown by event kind.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TypingBenchmark {
+
+    @Param({ "10000", "100000", "1000000" })
+    public int size;
+
+    private String html;
+    private List<TypingTrace.Event> events;
+
+    private TypingSession session;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        html = Corpus.html(Corpus.Shape.MIXED, size);
+        events = TypingTrace.generate(size, 5000).events();
+    }
+
+    // Each iteration starts over with the original document
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        session = new TypingSession(html);
+        next = 0;
+    }
+
+    @Benchmark
+    public FormatState replayEvent() {
+        final FormatState state = session.apply(events.get(next));
+        next = next + 1 == events.size() ? 0 : next + 1;
+        return state;
+    }
+
+}
@@ -0,0 +1,168 @@
+package io.github.mthli.knife.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays typing trace against documents of different sizes and prints p50 / p99 latency and
+ * allocated bytes per event kind. Exits with error if p99 keystroke latency exceeds the budget.
+ * <p>
+ * Usage: {@code TypingReplay [--trace file] [--budget-us micros] [sizes...]}, default sizes are
+ * 10000, 100000 and 1000000 chars. See 'replay' task in build.gradle.
+ */
+public final class TypingReplay {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int GENERATED_KEYSTROKES = 5000;
+
+    private TypingReplay() {}
+
+    public static void main(String[] args) throws IOException {
+        String traceFile = null;
+        long budgetMicros = -1L;
+        int[] sizes = { 10000, 100000, 1000000 };
+        int sizesCount = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--trace")) {
+                traceFile = args[++i];
+            } else if (args[i].equals("--budget-us")) {
+                budgetMicros = Long.parseLong(args[++i]);
+            } else {
+                if (sizesCount == 0) {
+                    sizes = new int[args.length];
+                }
+                sizes[sizesCount++] = Integer.parseInt(args[i]);
+            }
+        }
+        if (sizesCount > 0) {
+            sizes = Arrays.copyOf(sizes, sizesCount);
+        }
+
+        boolean withinBudget = true;
+        for (int size : sizes) {
+            final TypingTrace trace;
+            if (traceFile == null) {
+                trace = TypingTrace.generate(size, GENERATED_KEYSTROKES);
+            } else {
+                try (Reader reader =
+                        new InputStreamReader(new FileInputStream(traceFile), "UTF-8")) {
+                    trace = TypingTrace.parse(reader);
+                }
+            }
+
+            final String html = Corpus.html(Corpus.Shape.MIXED, size);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                replay(html, trace.events(), null);
+            }
+
+            final Stats stats = new Stats(trace.events().size());
+            replay(html, trace.events(), stats);
+
+            System.out.println("Document of " + size + " chars:");
+            stats.print();
+
+            final long p99 = stats.percentile(TypingTrace.KEY, 0.99) / 1000L;
+            if (budgetMicros >= 0L && p99 > budgetMicros) {
+                System.out.println("  p99 keystroke latency " + p99 + " us exceeds budget of "
+                        + budgetMicros + " us");
+                withinBudget = false;
+            }
+        }
+
+        if (!withinBudget) {
+            System.exit(1);
+        }
+    }
+
+    private static void replay(String html, List<TypingTrace.Event> events, Stats stats) {
+        final TypingSession session = new TypingSession(html);
+        final Allocations allocations = new Allocations();
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < events.size(); i++) {
+            final TypingTrace.Event event = events.get(i);
+            final long bytesBefore = allocations.current();
+            final long timeBefore = System.nanoTime();
+
+            session.apply(event);
+
+            final long time = System.nanoTime() - timeBefore;
+            final long bytes = bytesBefore == -1L ? -1L : allocations.current() - bytesBefore;
+            if (stats != null) {
+                stats.add(event.kind, time, bytes);
+            }
+        }
+    }
+
+
+    private static final class Stats {
+        private final long[][] times = new long[TypingTrace.KIND_NAMES.length][];
+        private final int[] counts = new int[TypingTrace.KIND_NAMES.length];
+        private final long[] bytes = new long[TypingTrace.KIND_NAMES.length];
+        private boolean bytesKnown = true;
+
+        Stats(int capacity) {
+            for (int i = 0; i < times.length; i++) {
+                times[i] = new long[capacity];
+            }
+        }
+
+        void add(int kind, long time, long allocated) {
+            times[kind][counts[kind]++] = time;
+            bytes[kind] += allocated;
+            bytesKnown &= allocated >= 0L;
+        }
+
+        long percentile(int kind, double fraction) {
+            if (counts[kind] == 0) {
+                return 0L;
+            }
+            final long[] sorted = Arrays.copyOf(times[kind], counts[kind]);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(sorted.length - 1, Math.floor(fraction * sorted.length))];
+        }
+
+        void print() {
+            System.out.println(String.format(Locale.US, "  %-8s %8s %10s %10s %14s",
+                    "event", "count", "p50, us", "p99, us", "bytes/event"));
+            for (int kind = 0; kind < counts.length; kind++) {
+                if (counts[kind] == 0) {
+                    continue;
+                }
+                System.out.println(String.format(Locale.US, "  %-8s %8d %10.1f %10.1f %14s",
+                        TypingTrace.KIND_NAMES[kind], counts[kind],
+                        percentile(kind, 0.5) / 1000.0, percentile(kind, 0.99) / 1000.0,
+                        !bytesKnown ? "n/a" : String.valueOf(bytes[kind] / counts[kind])));
+            }
+        }
+    }
+
+    // Bytes allocated by current thread, or -1 if not supported by the JVM
+    private static final class Allocations {
+        private final com.sun.management.ThreadMXBean bean;
+        private final long threadId = Thread.currentThread().getId();
+
+        Allocations() {
+            final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) threads)
+                    .isThreadAllocatedMemorySupported()) {
+                bean = (com.sun.management.ThreadMXBean) threads;
+            } else {
+                bean = null;
+            }
+        }
+
+        long current() {
+            return bean == null ? -1L : bean.getThreadAllocatedBytes(threadId);
+        }
+    }
+
+}
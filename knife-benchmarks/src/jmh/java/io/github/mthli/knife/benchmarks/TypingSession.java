@@ -0,0 +1,76 @@
+package io.github.mthli.knife.benchmarks;
+
+import io.github.mthli.knife.FormatState;
+import io.github.mthli.knife.KnifeDocument;
+import io.github.mthli.knife.KnifeEditable;
+
+/**
+ * Applies {@link TypingTrace} events to a document the same way Knife does it for the text view:
+ * text changes are followed by paragraph fixes, and each change of the text or selection
+ * computes the format state for the format listener.
+ */
+final class TypingSession {
+
+    private final KnifeDocument document;
+    private final KnifeEditable text;
+    private int selectionStart;
+    private int selectionEnd;
+
+    TypingSession(String html) {
+        document = KnifeDocument.fromHtml(html);
+        text = (KnifeEditable) document.getText();
+        selectionStart = selectionEnd = text.length() / 2;
+    }
+
+    int length() {
+        return text.length();
+    }
+
+    FormatState apply(TypingTrace.Event event) {
+        switch (event.kind) {
+            case TypingTrace.KEY:
+                replaceSelection(event.text);
+                break;
+            case TypingTrace.DELETE:
+                if (selectionStart == selectionEnd && selectionStart > 0) {
+                    selectionStart--;
+                }
+                replaceSelection("");
+                break;
+            case TypingTrace.SELECT:
+                select(event.start, event.length);
+                break;
+            case TypingTrace.TOGGLE:
+                document.toggle(event.format, selectionStart, selectionEnd);
+                break;
+            case TypingTrace.PASTE:
+                replaceSelection(KnifeDocument.fromHtml(event.text).getText());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event: " + event.kind);
+        }
+
+        return document.getFormatState(selectionStart, selectionEnd);
+    }
+
+    private void select(int start, int length) {
+        final int textLength = text.length();
+        if (start == -1) {
+            start = Math.max(selectionEnd - length, 0);
+        } else {
+            start = start % (textLength + 1);
+        }
+        selectionStart = start;
+        selectionEnd = (int) Math.min((long) start + length, textLength);
+    }
+
+    private void replaceSelection(CharSequence replacement) {
+        final int start = selectionStart;
+        text.replace(start, selectionEnd, replacement);
+        selectionStart = selectionEnd = start + replacement.length();
+
+        // Same fixes as Knife does after text changes
+        document.fixParagraphs(start, selectionEnd);
+    }
+
+}
@@ -0,0 +1,206 @@
+package io.github.mthli.knife.benchmarks;
+
+import io.github.mthli.knife.KnifeDocument;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Sequence of editing events to replay with {@link TypingSession}.
+ * <p>
+ * Traces are stored as text, one command per line, empty lines and lines starting with '#' are
+ * ignored:
+ * <pre>
+ * type hello world    each char is a separate keystroke
+ * enter               line break keystroke
+ * delete              backspace keystroke
+ * select 120 5        selection start, wrapped around text length, and selection length
+ * selectall
+ * toggle BOLD         one of BOLD, ITALIC, UNDERLINE, STRIKE, BULLET, QUOTE
+ * paste &lt;b&gt;x&lt;/b&gt;      HTML pasted over the selection
+ * </pre>
+ */
+final class TypingTrace {
+
+    static final int KEY = 0;
+    static final int DELETE = 1;
+    static final int SELECT = 2;
+    static final int TOGGLE = 3;
+    static final int PASTE = 4;
+
+    static final String[] KIND_NAMES = { "key", "delete", "select", "toggle", "paste" };
+
+    private final List<Event> events;
+
+    private TypingTrace(List<Event> events) {
+        this.events = Collections.unmodifiableList(events);
+    }
+
+    List<Event> events() {
+        return events;
+    }
+
+    static TypingTrace parse(Reader source) throws IOException {
+        final BufferedReader reader = new BufferedReader(source);
+        final List<Event> events = new ArrayList<>();
+
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            final int space = line.indexOf(' ');
+            final String command = space == -1 ? line : line.substring(0, space);
+            final String argument = space == -1 ? "" : line.substring(space + 1);
+
+            if (command.equals("type")) {
+                for (int i = 0; i < argument.length(); i++) {
+                    events.add(Event.key(argument.charAt(i)));
+                }
+            } else if (command.equals("enter")) {
+                events.add(Event.key('\n'));
+            } else if (command.equals("delete")) {
+                events.add(new Event(DELETE, null, 0, 0, null));
+            } else if (command.equals("select")) {
+                final String[] bounds = argument.trim().split("\\s+");
+                if (bounds.length != 2) {
+                    throw new IOException("Expected start and length at line " + lineNumber);
+                }
+                events.add(Event.select(
+                        Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1])));
+            } else if (command.equals("selectall")) {
+                events.add(Event.select(0, Integer.MAX_VALUE));
+            } else if (command.equals("toggle")) {
+                events.add(Event.toggle(formatOf(argument.trim(), lineNumber)));
+            } else if (command.equals("paste")) {
+                events.add(new Event(PASTE, argument, 0, 0, null));
+            } else {
+                throw new IOException("Unknown command '" + command + "' at line " + lineNumber);
+            }
+        }
+
+        return new TypingTrace(events);
+    }
+
+    private static Class formatOf(String name, int lineNumber) throws IOException {
+        switch (name.toUpperCase(Locale.US)) {
+            case "BOLD":
+                return KnifeDocument.BOLD;
+            case "ITALIC":
+                return KnifeDocument.ITALIC;
+            case "UNDERLINE":
+                return KnifeDocument.UNDERLINE;
+            case "STRIKE":
+                return KnifeDocument.STRIKE;
+            case "BULLET":
+                return KnifeDocument.BULLET;
+            case "QUOTE":
+                return KnifeDocument.QUOTE;
+            default:
+                throw new IOException("Unknown format '" + name + "' at line " + lineNumber);
+        }
+    }
+
+    /**
+     * Generates a session of moving the cursor around, typing words, fixing typos and formatting
+     * them, with an occasional select-all toggle and paste. Same seed gives same session.
+     */
+    static TypingTrace generate(long seed, int keystrokes) {
+        final Random random = new Random(seed);
+        final List<Event> events = new ArrayList<>();
+        final Class[] formats = {
+                KnifeDocument.BOLD, KnifeDocument.ITALIC, KnifeDocument.UNDERLINE,
+                KnifeDocument.STRIKE, KnifeDocument.BULLET, KnifeDocument.QUOTE
+        };
+        final String pasteSmall = Corpus.html(Corpus.Shape.INLINE, 500);
+        final String pasteLarge = Corpus.html(Corpus.Shape.MIXED, 20000);
+
+        int typed = 0;
+        while (typed < keystrokes) {
+            // Moving cursor to another place in the document
+            events.add(Event.select(random.nextInt(Integer.MAX_VALUE), 0));
+
+            final int words = 3 + random.nextInt(10);
+            for (int w = 0; w < words && typed < keystrokes; w++) {
+                final int length = 2 + random.nextInt(8);
+                for (int i = 0; i < length; i++) {
+                    events.add(Event.key((char) ('a' + random.nextInt(26))));
+                }
+                typed += length;
+
+                if (random.nextInt(8) == 0) {
+                    // Fixing a typo
+                    events.add(new Event(DELETE, null, 0, 0, null));
+                    events.add(Event.key((char) ('a' + random.nextInt(26))));
+                    typed += 2;
+                }
+                if (random.nextInt(6) == 0) {
+                    // Formatting just typed word, as selecting it back from the cursor
+                    events.add(Event.selectBack(length));
+                    events.add(Event.toggle(formats[random.nextInt(formats.length)]));
+                    events.add(Event.selectBack(0));
+                }
+
+                events.add(Event.key(random.nextInt(10) == 0 ? '\n' : ' '));
+                typed++;
+            }
+
+            if (random.nextInt(40) == 0) {
+                events.add(Event.select(0, Integer.MAX_VALUE));
+                events.add(Event.toggle(formats[random.nextInt(4)]));
+            }
+            if (random.nextInt(20) == 0) {
+                events.add(Event.select(random.nextInt(Integer.MAX_VALUE), 0));
+                events.add(new Event(PASTE,
+                        random.nextInt(5) == 0 ? pasteLarge : pasteSmall, 0, 0, null));
+            }
+        }
+
+        return new TypingTrace(events);
+    }
+
+
+    static final class Event {
+        final int kind;
+        final String text;
+        // Selection start (or -1 for selecting relative to cursor) and length
+        final int start;
+        final int length;
+        final Class format;
+
+        Event(int kind, String text, int start, int length, Class format) {
+            this.kind = kind;
+            this.text = text;
+            this.start = start;
+            this.length = length;
+            this.format = format;
+        }
+
+        static Event key(char c) {
+            return new Event(KEY, String.valueOf(c), 0, 0, null);
+        }
+
+        static Event select(int start, int length) {
+            return new Event(SELECT, null, start, length, null);
+        }
+
+        // Selects given number of chars before the cursor
+        static Event selectBack(int length) {
+            return new Event(SELECT, null, -1, length, null);
+        }
+
+        static Event toggle(Class format) {
+            return new Event(TOGGLE, null, 0, 0, format);
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package io.github.mthli.knife;
+
+/**
+ * Snapshot of formats applied to a text range, see
+ * {@link KnifeDocument#getFormatState(int, int)}.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
+public class FormatState {
+
+    public static final int BOLD = 1;
+    public static final int ITALIC = 1 << 1;
+    public static final int UNDERLINE = 1 << 2;
+    public static final int STRIKE = 1 << 3;
+    public static final int BULLET = 1 << 4;
+    public static final int QUOTE = 1 << 5;
+    public static final int URL = 1 << 6;
+
+    private final int formats;
+    private final Span<String> link;
+
+    FormatState(int formats, Span<String> link) {
+        this.formats = formats;
+        this.link = link;
+    }
+
+    /**
+     * Returns bit set of applied formats, e.g. {@code BOLD | BULLET}. Flags of custom formats are
+     * provided by {@link SpanType#getFlag()}.
+     */
+    public int getFormats() {
+        return formats;
+    }
+
+    /**
+     * Same as {@link KnifeDocument#has(Class, int, int)} for the range this state was computed for.
+     */
+    public boolean has(Class spanClass) {
+        return (formats & flagOf(spanClass)) != 0;
+    }
+
+    /**
+     * Same as {@link KnifeDocument#getLink(int)} for the range start position.
+     */
+    public Span<String> getLink() {
+        return link;
+    }
+
+    // Flags of built-in formats are same as ids of corresponding span types
+    static int flagOf(Class spanClass) {
+        final SpanType type = SpanType.of(spanClass);
+        return type == null ? 0 : type.getFlag();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FormatState)) {
+            return false;
+        }
+        final FormatState other = (FormatState) obj;
+        if (formats != other.formats) {
+            return false;
+        }
+        if (link == null || other.link == null) {
+            return link == other.link;
+        }
+        return link.start == other.link.start && link.end == other.link.end
+                && (link.data == null ? other.link.data == null : link.data.equals(other.link.data));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = formats;
+        if (link != null) {
+            result = 31 * result + (link.data == null ? 0 : link.data.hashCode());
+            result = 31 * result + link.start;
+            result = 31 * result + link.end;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,1160 @@
+package io.github.mthli.knife;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Knife formatting logic over a plain {@link KnifeSpannable}, without platform dependencies.
+ * Formats are identified by {@link KnifeSpan} interfaces, e.g. {@link #BOLD}, but any span class
+ * implementing one of them is accepted too.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
+public class KnifeDocument {
+
+    public static final Class BOLD = KnifeSpan.Bold.class;
+    public static final Class ITALIC = KnifeSpan.Italic.class;
+    public static final Class UNDERLINE = KnifeSpan.Underline.class;
+    public static final Class STRIKE = KnifeSpan.Strike.class;
+    public static final Class BULLET = KnifeSpan.Bullet.class;
+    public static final Class QUOTE = KnifeSpan.Quote.class;
+    public static final Class URL = KnifeSpan.Link.class;
+
+    private final KnifeSpannable text;
+    private final KnifeSpan.Factory factory;
+
+    private String currentUrl;
+
+    public KnifeDocument() {
+        this(new KnifeSpannableBuilder());
+    }
+
+    public KnifeDocument(KnifeSpannable text) {
+        this(text, KnifeSpans.FACTORY);
+    }
+
+    public KnifeDocument(KnifeSpannable text, KnifeSpan.Factory factory) {
+        this.text = text;
+        this.factory = factory;
+    }
+
+    public static KnifeDocument fromHtml(String html) {
+        return fromHtml(html, KnifeSpans.FACTORY);
+    }
+
+    public static KnifeDocument fromHtml(String html, KnifeSpan.Factory factory) {
+        final KnifeSpannableBuilder text = new KnifeSpannableBuilder();
+        KnifeParser.fromHtml(html, factory, text);
+        return new KnifeDocument(text, factory);
+    }
+
+    /**
+     * Reads HTML in chunks, without keeping the whole source in memory. Reader is not closed.
+     */
+    public static KnifeDocument fromHtml(Reader html) throws IOException {
+        return fromHtml(html, KnifeSpans.FACTORY);
+    }
+
+    public static KnifeDocument fromHtml(Reader html, KnifeSpan.Factory factory)
+            throws IOException {
+        final KnifeSpannableBuilder text = new KnifeSpannableBuilder();
+        KnifeParser.fromHtml(html, factory, text);
+        return new KnifeDocument(text, factory);
+    }
+
+    public KnifeSpannable getText() {
+        return text;
+    }
+
+    public String getHtml() {
+        return KnifeParser.toHtml(text);
+    }
+
+    /**
+     * Writes same HTML as {@link #getHtml()} directly into given appendable.
+     */
+    public void writeHtml(Appendable out) throws IOException {
+        KnifeParser.toHtml(text, out);
+    }
+
+    /**
+     * Returns HTML of given range only, as if the range was copied into a separate document.
+     * Work done is proportional to the range size rather than to the whole text size.
+     */
+    public String getHtml(int start, int end) {
+        return KnifeParser.toHtml(text, start, end);
+    }
+
+    /**
+     * Writes same HTML as {@link #getHtml(int, int)} directly into given appendable.
+     */
+    public void writeHtml(Appendable out, int start, int end) throws IOException {
+        KnifeParser.toHtml(text, start, end, out);
+    }
+
+    /**
+     * Returns immutable copy of the text, which can be converted into HTML on another thread
+     * while this document is still being changed. Copying takes time linear in the length of
+     * the text, see {@link KnifeSnapshot}.
+     */
+    public KnifeSnapshot snapshot() {
+        return KnifeSnapshot.of(text);
+    }
+
+    /**
+     * Returns hash of the text chars and formats applied to them. It does not depend on how
+     * formats are split into spans, so that documents with same fingerprint have same content,
+     * with a negligible chance of collision.
+     */
+    public long fingerprint() {
+        return KnifeFingerprint.of(text);
+    }
+
+    // Formats =====================================================================================
+
+    /**
+     * Returns format interface implemented by given span class, e.g. {@link #BOLD}.
+     */
+    public static Class formatOf(Class spanClass) {
+        return typeOf(spanClass).getFormat();
+    }
+
+    private static SpanType typeOf(Class spanClass) {
+        final SpanType type = SpanType.of(spanClass);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown span type: " + spanClass.getSimpleName());
+        }
+        return type;
+    }
+
+    static boolean isKnifeSpan(Object span) {
+        return span instanceof KnifeSpan;
+    }
+
+    static int getDefaultFlags(Object span) {
+        return span instanceof KnifeSpan.Paragraph
+                ? KnifeSpanned.SPAN_EXCLUSIVE_EXCLUSIVE : KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE;
+    }
+
+    private static boolean isParagraphSpan(Class format) {
+        return typeOf(format).isParagraph();
+    }
+
+    private static boolean isSplittableSpan(Class format) {
+        return typeOf(format).isSplittable();
+    }
+
+    // Custom types always use their own factory, given factory is only used for built-in types
+    private Object createSpan(Class format, String url) {
+        final SpanType type = typeOf(format);
+        if (type == SpanType.URL && (url == null || url.length() == 0)) {
+            throw new IllegalArgumentException("Use setLink() method to add links");
+        }
+        return type.isCustom() ? type.createSpan(url) : factory.createSpan(format, url);
+    }
+
+    // Public methods ==============================================================================
+
+    public void set(Class spanClass, int start, int end) {
+        final Class format = formatOf(spanClass);
+        if (isParagraphSpan(format)) {
+            setParagraph(format, start, end);
+        } else {
+            setSpan(format, start, end);
+        }
+    }
+
+    public void remove(Class spanClass, int start, int end) {
+        final Class format = formatOf(spanClass);
+        if (isParagraphSpan(format)) {
+            removeParagraph(format, start, end);
+        } else {
+            removeSpan(format, start, end);
+        }
+    }
+
+    public boolean has(Class spanClass, int start, int end) {
+        final Class format = formatOf(spanClass);
+        if (isParagraphSpan(format)) {
+            return isFullOfParagraphs(format, start, end);
+        } else {
+            return isFullySpanned(format, start, end);
+        }
+    }
+
+    public void toggle(Class spanClass, int start, int end) {
+        final Class format = formatOf(spanClass);
+        if (isParagraphSpan(format)) {
+            if (isFullOfParagraphs(format, start, end)) {
+                removeParagraph(format, start, end);
+            } else {
+                setParagraph(format, start, end);
+            }
+        } else {
+            if (isFullySpanned(format, start, end)) {
+                removeSpan(format, start, end);
+            } else {
+                setSpan(format, start, end);
+            }
+        }
+    }
+
+    /**
+     * Sets format over each of given ranges, e.g. over all search results. Ranges are given as
+     * start and end pairs in any order, they are merged and applied in a single pass over the
+     * spans. Empty character ranges are carets and are handled same as by
+     * {@link #set(Class, int, int)}, after all other ranges.
+     */
+    public void set(Class spanClass, int[] ranges) {
+        final Class format = formatOf(spanClass);
+        if (isParagraphSpan(format)) {
+            final long[] paragraphs = mergeRanges(ranges, true);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < paragraphs.length; i++) {
+                setParagraph(format, boundsStart(paragraphs[i]), boundsEnd(paragraphs[i]));
+            }
+        } else {
+            setSpans(format, mergeRanges(ranges, false), true);
+            setCarets(format, ranges, true);
+        }
+    }
+
+    /**
+     * Removes format from each of given ranges, see {@link #set(Class, int[])}. Empty character
+     * ranges are handled same as by {@link #remove(Class, int, int)}, after all other ranges.
+     */
+    public void remove(Class spanClass, int[] ranges) {
+        final Class format = formatOf(spanClass);
+        if (isParagraphSpan(format)) {
+            final long[] paragraphs = mergeRanges(ranges, true);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < paragraphs.length; i++) {
+                removeParagraph(format, boundsStart(paragraphs[i]), boundsEnd(paragraphs[i]));
+            }
+        } else {
+            setSpans(format, mergeRanges(ranges, false), false);
+            setCarets(format, ranges, false);
+        }
+    }
+
+    /**
+     * Whether format is applied to all of given ranges, see {@link #set(Class, int[])}.
+     * Same as {@link #has(Class, int, int)} returning true for each of the ranges, including
+     * empty ones.
+     */
+    public boolean has(Class spanClass, int[] ranges) {
+        final Class format = formatOf(spanClass);
+        if (isParagraphSpan(format)) {
+            final long[] paragraphs = mergeRanges(ranges, true);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < paragraphs.length; i++) {
+                if (!isFullOfParagraphs(format, boundsStart(paragraphs[i]),
+                        boundsEnd(paragraphs[i]))) {
+                    return false;
+                }
+            }
+            return paragraphs.length > 0;
+        } else {
+            final long[] merged = mergeRanges(ranges, false);
+            if (merged.length > 0 && !isFullySpanned(format, merged)) {
+                return false;
+            }
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] == ranges[i + 1] && !isFullySpanned(format, ranges[i], ranges[i])) {
+                    return false;
+                }
+            }
+            return ranges.length > 0;
+        }
+    }
+
+    /**
+     * Removes format from given ranges if all of them have it, sets it over all of them otherwise,
+     * see {@link #has(Class, int[])}.
+     */
+    public void toggle(Class spanClass, int[] ranges) {
+        if (has(spanClass, ranges)) {
+            remove(spanClass, ranges);
+        } else {
+            set(spanClass, ranges);
+        }
+    }
+
+    public void clearFormat(int start, int end) {
+        final SpanType[] types = SpanType.all();
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < types.length; i++) {
+            remove(types[i].getFormat(), start, end);
+        }
+    }
+
+    public void setLink(String url, int start, int end) {
+        currentUrl = url;
+        try {
+            set(URL, start, end);
+        } finally {
+            currentUrl = null;
+        }
+    }
+
+    public Span<String> getLink(int start) {
+        final KnifeSpan.Link[] urls = text.getSpans(start, start, KnifeSpan.Link.class);
+        return urls.length == 0 ? null : new Span<>(urls[0].getURL(),
+                text.getSpanStart(urls[0]), text.getSpanEnd(urls[0]));
+    }
+
+    /**
+     * Computes formats applied to given range, same as calling {@link #has(Class, int, int)} for
+     * each format and {@link #getLink(int)} for range start, but in a single pass over the spans.
+     */
+    public FormatState getFormatState(int start, int end) {
+        final int paragraphStart = findLineStart(text, start);
+        final int paragraphEnd = findLineEnd(text, end);
+
+        // Paragraph bounds are extended same way as in isFullOfParagraphs()
+        final Object[] spans = text.getSpans(Math.max(paragraphStart - 1, 0),
+                Math.min(paragraphEnd + 1, text.length()), KnifeSpan.class);
+
+        // Grouping spans by type
+        final SpanType[] types = SpanType.all();
+        final Object[][] groups = new Object[types.length][];
+        final int[] counts = new int[types.length];
+        final int[] typeIds = new int[spans.length];
+        Span<String> link = null;
+
+        for (int i = 0; i < spans.length; i++) {
+            final SpanType type = SpanType.ofSpan(spans[i]);
+            // Ignoring types registered after the types array was taken
+            typeIds[i] = type == null || type.getId() >= types.length ? -1 : type.getId();
+            if (typeIds[i] != -1) {
+                counts[typeIds[i]]++;
+            }
+
+            if (link == null && spans[i] instanceof KnifeSpan.Link) {
+                final int spanStart = text.getSpanStart(spans[i]);
+                final int spanEnd = text.getSpanEnd(spans[i]);
+                if (spanStart <= start && start <= spanEnd) {
+                    link = new Span<>(((KnifeSpan.Link) spans[i]).getURL(), spanStart, spanEnd);
+                }
+            }
+        }
+
+        for (int t = 0; t < types.length; t++) {
+            groups[t] = new Object[counts[t]];
+            counts[t] = 0;
+        }
+        for (int i = 0; i < spans.length; i++) {
+            if (typeIds[i] != -1) {
+                groups[typeIds[i]][counts[typeIds[i]]++] = spans[i];
+            }
+        }
+
+        int formats = 0;
+        for (int t = 0; t < types.length; t++) {
+            final boolean has;
+            if (types[t].isParagraph()) {
+                has = paragraphStart != paragraphEnd
+                        && isFullOfParagraphs(text, groups[t], paragraphStart, paragraphEnd);
+            } else {
+                has = isFullySpanned(text, groups[t], start, end);
+            }
+            if (has) {
+                formats |= types[t].getFlag();
+            }
+        }
+
+        return new FormatState(formats, link);
+    }
+
+    /**
+     * Merges adjacent and overlapping character spans of the same format (links only if they
+     * have the same URL) and removes empty and duplicated spans.
+     *
+     * @return Number of removed spans
+     */
+    public int compact() {
+        final SpanType[] types = SpanType.all();
+        int removed = 0;
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < types.length; i++) {
+            if (types[i].isParagraph()) {
+                removed += compactParagraphs(types[i].getFormat());
+            } else {
+                removed += compactSpans(types[i].getFormat());
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Makes paragraph spans within lines of given range cover whole lines again, e.g. after a line
+     * break was typed in the middle of a bullet.
+     */
+    public void fixParagraphs(int start, int end) {
+        final int lineStart = findLineStart(text, start);
+        final int lineEnd = findLineEnd(text, end);
+
+        fixParagraphs(BULLET, lineStart, lineEnd);
+        fixParagraphs(QUOTE, lineStart, lineEnd);
+    }
+
+    // Regular spans logic =========================================================================
+
+    private void setSpan(Class spanClass, int start, int end) {
+        if (start == end) {
+            // Including span's end position
+            final Object[] spans = text.getSpans(start, end, spanClass);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < spans.length; i++) {
+                if (text.getSpanEnd(spans[i]) == end) {
+                    setSpanFlag(text, spans[i], KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+                }
+            }
+        } else {
+            setSpan(spanClass, text.getSpans(start, end, spanClass), start, end);
+        }
+    }
+
+    // Spans are the spans of given class intersecting the non-empty range
+    private void setSpan(Class spanClass, Object[] spans, int start, int end) {
+        if (isSplittableSpan(spanClass)) {
+            // Merging with intersecting spans and with spans adjacent to the merged range
+            final long bounds = removeIntersecting(spanClass, spans, start, end, true);
+            start = boundsStart(bounds);
+            end = boundsEnd(bounds);
+        } else {
+            removeSpans(text, spans);
+        }
+
+        text.setSpan(createSpan(spanClass, currentUrl), start, end,
+                KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+    }
+
+    private void removeSpan(Class spanClass, int start, int end) {
+        if (start == end) {
+            // Excluding span's end position
+            final Object[] spans = text.getSpans(start, end, spanClass);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < spans.length; i++) {
+                if (text.getSpanEnd(spans[i]) == end) {
+                    setSpanFlag(text, spans[i], KnifeSpanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+        } else {
+            removeSpan(spanClass, text.getSpans(start, end, spanClass), start, end);
+        }
+    }
+
+    // Spans are the spans of given class intersecting the non-empty range
+    private void removeSpan(Class spanClass, Object[] spans, int start, int end) {
+        if (!isSplittableSpan(spanClass)) {
+            removeSpans(text, spans);
+            return;
+        }
+
+        // Parts of the spans crossing range bounds are added back, in the order of the spans
+        boolean leftFirst = true;
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            if (text.getSpanStart(spans[i]) < start) {
+                break;
+            } else if (text.getSpanEnd(spans[i]) > end) {
+                leftFirst = false;
+                break;
+            }
+        }
+
+        final long bounds = removeIntersecting(spanClass, spans, start, end, false);
+        final int leftStart = boundsStart(bounds);
+        final int rightEnd = boundsEnd(bounds);
+
+        if (leftFirst && leftStart < start) {
+            text.setSpan(createSpan(spanClass, currentUrl), leftStart, start,
+                    KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        }
+        if (end < rightEnd) {
+            text.setSpan(createSpan(spanClass, currentUrl), end, rightEnd,
+                    KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        }
+        if (!leftFirst && leftStart < start) {
+            text.setSpan(createSpan(spanClass, currentUrl), leftStart, start,
+                    KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        }
+    }
+
+    // Removes spans intersecting the range and returns the range extended by the removed spans,
+    // packed as (start << 32 | end). Extended range is also merged with spans adjacent to it,
+    // on the sides where range bounds are crossed by the spans or on both sides if requested.
+    // Same spans are removed and same bounds are found as if the spans were split at range bounds
+    // and the parts left outside were added back with setSpan() one by one.
+    private long removeIntersecting(Class spanClass, Object[] spans, int start, int end,
+            boolean mergeAlways) {
+        int mergedStart = start;
+        int mergedEnd = end;
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            mergedStart = Math.min(mergedStart, text.getSpanStart(spans[i]));
+            mergedEnd = Math.max(mergedEnd, text.getSpanEnd(spans[i]));
+        }
+        if (!mergeAlways && mergedStart == start && mergedEnd == end) {
+            removeSpans(text, spans); // No spans cross range bounds
+            return (long) start << 32 | end;
+        }
+
+        // Spans around the extended range, along with the adjacent ones, are queried at once and
+        // swept through in the order of their start positions. Query is repeated only if spans
+        // overlapping each other, e.g. from nested tags, extend the range past the queried
+        // bounds, each repeat covers at least one more of such spans.
+        while (true) {
+            spans = text.getSpans(Math.max(0, mergedStart - 1),
+                    Math.min(text.length(), mergedEnd + 1), spanClass);
+            final long bounds = mergeOverlapping(text, spans, start, end);
+            if (boundsStart(bounds) == mergedStart && boundsEnd(bounds) == mergedEnd) {
+                break;
+            }
+            mergedStart = boundsStart(bounds);
+            mergedEnd = boundsEnd(bounds);
+        }
+
+        // Empty spans within the extended range are dropped too
+        final boolean mergeStart = mergeAlways || mergedStart < start;
+        final boolean mergeEnd = mergeAlways || end < mergedEnd;
+        int resultStart = mergedStart;
+        int resultEnd = mergedEnd;
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            final int spanStart = text.getSpanStart(spans[i]);
+            final int spanEnd = text.getSpanEnd(spans[i]);
+            if (spanStart == spanEnd
+                    ? spanStart >= mergedStart && spanStart <= mergedEnd
+                    : spanStart < mergedEnd && spanEnd > mergedStart) {
+                text.removeSpan(spans[i]);
+            } else if (mergeStart && spanEnd == mergedStart) {
+                resultStart = Math.min(resultStart, spanStart);
+                text.removeSpan(spans[i]);
+            } else if (mergeEnd && spanStart == mergedEnd) {
+                resultEnd = Math.max(resultEnd, spanEnd);
+                text.removeSpan(spans[i]);
+            }
+        }
+
+        return (long) resultStart << 32 | resultEnd;
+    }
+
+    // Returns the range merged with groups of overlapping non-empty spans which overlap it,
+    // packed as (start << 32 | end)
+    private static long mergeOverlapping(KnifeSpanned text, Object[] spans, int start, int end) {
+        final long[] bounds = getSortedBounds(text, spans);
+        int mergedStart = start;
+        int mergedEnd = end;
+        int groupStart = 0;
+        int groupEnd = -1;
+
+        for (int i = 0; i <= bounds.length; i++) {
+            final boolean last = i == bounds.length;
+            final int spanStart = last ? Integer.MAX_VALUE : boundsStart(bounds[i]);
+            final int spanEnd = last ? Integer.MAX_VALUE : boundsEnd(bounds[i]);
+            if (spanStart == spanEnd && !last) {
+                continue;
+            }
+            if (spanStart < groupEnd) {
+                groupEnd = Math.max(groupEnd, spanEnd);
+                continue;
+            }
+
+            if (groupStart < end && groupEnd > start) {
+                mergedStart = Math.min(mergedStart, groupStart);
+                mergedEnd = Math.max(mergedEnd, groupEnd);
+            }
+            groupStart = spanStart;
+            groupEnd = spanEnd;
+        }
+
+        return (long) mergedStart << 32 | mergedEnd;
+    }
+
+    // Removes spans containing or touching given position, returns min start of removed spans
+    private int removeSpansAtStart(Class spanClass, int position) {
+        final Object[] before = text.getSpans(position, position, spanClass);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < before.length; i++) {
+            position = Math.min(position, text.getSpanStart(before[i]));
+        }
+        removeSpans(text, before);
+        return position;
+    }
+
+    // Removes spans containing or touching given position, returns max end of removed spans
+    private int removeSpansAtEnd(Class spanClass, int position) {
+        final Object[] after = text.getSpans(position, position, spanClass);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < after.length; i++) {
+            position = Math.max(position, text.getSpanEnd(after[i]));
+        }
+        removeSpans(text, after);
+        return position;
+    }
+
+    private boolean isFullySpanned(Class spanClass, int start, int end) {
+        return isFullySpanned(text, text.getSpans(start, end, spanClass), start, end);
+    }
+
+    private static boolean isFullySpanned(KnifeSpanned text, Object[] spans, int start, int end) {
+        if (start == end) {
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < spans.length; i++) {
+                final int spanStart = text.getSpanStart(spans[i]);
+                final int spanEnd = text.getSpanEnd(spans[i]);
+                final int spanFlag = text.getSpanFlags(spans[i]);
+                if ((start > spanStart && end < spanEnd)
+                        || (end == spanEnd && spanFlag == KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Sweeping through spans ordered by start position, looking for an uncovered gap
+        final long[] bounds = getSortedBounds(text, spans);
+        int covered = start;
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < bounds.length; i++) {
+            if (boundsStart(bounds[i]) > covered) {
+                return false;
+            }
+            covered = Math.max(covered, boundsEnd(bounds[i]));
+            if (covered >= end) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void removeSpans(KnifeSpannable text, Object[] spans) {
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            text.removeSpan(spans[i]);
+        }
+    }
+
+    private static void setSpanFlag(KnifeSpannable text, Object span, int flag) {
+        int spanStart = text.getSpanStart(span);
+        int spanEnd = text.getSpanEnd(span);
+        text.removeSpan(span);
+        text.setSpan(span, spanStart, spanEnd, flag);
+    }
+
+    // Multiple ranges logic =======================================================================
+
+    // Returns given start and end pairs packed as (start << 32 | end), sorted by start and with
+    // overlapping and adjacent ranges merged. Paragraph ranges are extended to line bounds,
+    // empty character ranges are dropped, see setCarets().
+    private long[] mergeRanges(int[] ranges, boolean paragraph) {
+        if (ranges.length % 2 != 0) {
+            throw new IllegalArgumentException("Ranges should be given as start and end pairs");
+        }
+
+        final long[] bounds = new long[ranges.length / 2];
+        int count = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            int start = Math.min(ranges[i], ranges[i + 1]);
+            int end = Math.max(ranges[i], ranges[i + 1]);
+            if (paragraph) {
+                start = findLineStart(text, start);
+                end = findLineEnd(text, end);
+            } else if (start == end) {
+                continue;
+            }
+            bounds[count++] = (long) start << 32 | end;
+        }
+        Arrays.sort(bounds, 0, count);
+
+        int merged = 0;
+        for (int i = 0; i < count; i++) {
+            if (merged > 0 && boundsStart(bounds[i]) <= boundsEnd(bounds[merged - 1])) {
+                final int end = Math.max(boundsEnd(bounds[merged - 1]), boundsEnd(bounds[i]));
+                bounds[merged - 1] = (long) boundsStart(bounds[merged - 1]) << 32 | end;
+            } else {
+                bounds[merged++] = bounds[i];
+            }
+        }
+        return Arrays.copyOf(bounds, merged);
+    }
+
+    // Applies single range logic to empty ranges, which are dropped by mergeRanges()
+    private void setCarets(Class spanClass, int[] ranges, boolean set) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] != ranges[i + 1]) {
+                continue;
+            }
+            if (set) {
+                setSpan(spanClass, ranges[i], ranges[i]);
+            } else {
+                removeSpan(spanClass, ranges[i], ranges[i]);
+            }
+        }
+    }
+
+    // Ranges should be merged. Spans of all ranges are queried at once and swept through
+    // in the order of their start positions, so that each of them is looked at only once.
+    private void setSpans(Class spanClass, long[] ranges, boolean set) {
+        if (ranges.length == 0) {
+            return;
+        }
+
+        final Object[] spans = text.getSpans(boundsStart(ranges[0]),
+                boundsEnd(ranges[ranges.length - 1]), spanClass);
+
+        if (!isSplittableSpan(spanClass)) {
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < spans.length; i++) {
+                if (intersectsRange(ranges, text.getSpanStart(spans[i]),
+                        text.getSpanEnd(spans[i]))) {
+                    text.removeSpan(spans[i]);
+                }
+            }
+            if (set) {
+                //noinspection ForLoopReplaceableByForEach
+                for (int i = 0; i < ranges.length; i++) {
+                    text.setSpan(createSpan(spanClass, currentUrl), boundsStart(ranges[i]),
+                            boundsEnd(ranges[i]), KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+                }
+            }
+            return;
+        }
+
+        // Spans overlapping or touching each other are grouped, along with ranges when setting.
+        // Groups intersecting ranges are replaced by a single span, or by their parts left
+        // outside of the ranges when removing.
+        final long[] order = getSortedOrder(text, spans);
+        int next = 0;
+        int range = 0;
+        int groupFrom = 0;
+        int groupStart = 0;
+        int groupEnd = -1;
+        boolean affected = false;
+
+        while (next < order.length || (set && range < ranges.length)) {
+            final boolean isRange = set && range < ranges.length && (next == order.length
+                    || boundsStart(ranges[range]) <= boundsStart(order[next]));
+
+            final int start;
+            final int end;
+            if (isRange) {
+                start = boundsStart(ranges[range]);
+                end = boundsEnd(ranges[range]);
+                range++;
+            } else {
+                start = boundsStart(order[next]);
+                end = text.getSpanEnd(spans[(int) order[next]]);
+                next++;
+            }
+
+            if (start > groupEnd) {
+                if (affected) {
+                    replaceGroup(spanClass, spans, order, groupFrom, isRange ? next : next - 1,
+                            groupStart, groupEnd, ranges, set);
+                }
+                groupFrom = isRange ? next : next - 1;
+                groupStart = start;
+                groupEnd = end;
+                affected = false;
+            } else {
+                groupEnd = Math.max(groupEnd, end);
+            }
+            affected |= isRange || (!set && intersectsRange(ranges, start, end));
+        }
+
+        if (affected) {
+            replaceGroup(spanClass, spans, order, groupFrom, next, groupStart, groupEnd,
+                    ranges, set);
+        }
+    }
+
+    private void replaceGroup(Class spanClass, Object[] spans, long[] order, int from, int to,
+            int start, int end, long[] ranges, boolean set) {
+        for (int i = from; i < to; i++) {
+            text.removeSpan(spans[(int) order[i]]);
+        }
+
+        // Only spans of the first and the last group can cross bounds of the queried range,
+        // they are merged with adjacent spans same as a single range is
+        final int rangesStart = boundsStart(ranges[0]);
+        final int rangesEnd = boundsEnd(ranges[ranges.length - 1]);
+        if (start < rangesStart || (set && start == rangesStart)) {
+            start = removeSpansAtStart(spanClass, start);
+        }
+        if (end > rangesEnd || (set && end == rangesEnd)) {
+            end = removeSpansAtEnd(spanClass, end);
+        }
+
+        if (set) {
+            text.setSpan(createSpan(spanClass, currentUrl), start, end,
+                    KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+            return;
+        }
+
+        // Parts of the group between ranges are added back
+        int position = start;
+        for (int i = findRange(ranges, start); i < ranges.length; i++) {
+            final int rangeStart = boundsStart(ranges[i]);
+            if (rangeStart >= end) {
+                break;
+            }
+            if (position < rangeStart) {
+                text.setSpan(createSpan(spanClass, currentUrl), position, rangeStart,
+                        KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+            }
+            position = Math.max(position, boundsEnd(ranges[i]));
+        }
+        if (position < end) {
+            text.setSpan(createSpan(spanClass, currentUrl), position, end,
+                    KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        }
+    }
+
+    // Same as isFullySpanned() for each of merged ranges, with a single sweep through the spans
+    private boolean isFullySpanned(Class spanClass, long[] ranges) {
+        if (ranges.length == 0) {
+            return false;
+        }
+
+        final long[] bounds = getSortedBounds(text, text.getSpans(boundsStart(ranges[0]),
+                boundsEnd(ranges[ranges.length - 1]), spanClass));
+        int next = 0;
+        int covered = -1; // Max end of spans starting before current position
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < ranges.length; i++) {
+            int position = boundsStart(ranges[i]);
+            while (covered < boundsEnd(ranges[i])) {
+                for (; next < bounds.length && boundsStart(bounds[next]) <= position; next++) {
+                    covered = Math.max(covered, boundsEnd(bounds[next]));
+                }
+                if (covered <= position) {
+                    return false;
+                }
+                position = covered;
+            }
+        }
+        return true;
+    }
+
+    // Whether a span with given bounds is returned by getSpans() for any of merged ranges
+    private static boolean intersectsRange(long[] ranges, int spanStart, int spanEnd) {
+        int i = findRange(ranges, spanStart);
+        if (spanStart == spanEnd) {
+            return i < ranges.length && boundsStart(ranges[i]) <= spanStart;
+        }
+        if (i < ranges.length && boundsEnd(ranges[i]) == spanStart) {
+            i++;
+        }
+        return i < ranges.length && boundsStart(ranges[i]) < spanEnd;
+    }
+
+    // Returns index of the first of merged ranges ending not before given position
+    private static int findRange(long[] ranges, int position) {
+        int low = 0;
+        int high = ranges.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (boundsEnd(ranges[mid]) < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Compaction logic ============================================================================
+
+    private int compactSpans(Class spanClass) {
+        final Object[] spans = text.getSpans(0, text.length(), spanClass);
+        final long[] order = getSortedOrder(text, spans);
+        int removed = 0;
+
+        Object current = null;
+        int currentStart = 0;
+        int currentEnd = 0;
+        int currentFlags = 0;
+        boolean extended = false;
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < order.length; i++) {
+            final Object span = spans[(int) order[i]];
+            final int spanStart = boundsStart(order[i]);
+            final int spanEnd = text.getSpanEnd(span);
+
+            if (spanStart == spanEnd) {
+                text.removeSpan(span);
+                removed++;
+            } else if (current != null && spanStart <= currentEnd && isSameLink(current, span)) {
+                // Merging into current span, its flags are taken from the span ending last
+                if (spanEnd >= currentEnd) {
+                    currentEnd = spanEnd;
+                    currentFlags = text.getSpanFlags(span);
+                }
+                text.removeSpan(span);
+                removed++;
+                extended = true;
+            } else {
+                if (extended) {
+                    text.removeSpan(current);
+                    text.setSpan(current, currentStart, currentEnd, currentFlags);
+                }
+                current = span;
+                currentStart = spanStart;
+                currentEnd = spanEnd;
+                currentFlags = text.getSpanFlags(span);
+                extended = false;
+            }
+        }
+
+        if (extended) {
+            text.removeSpan(current);
+            text.setSpan(current, currentStart, currentEnd, currentFlags);
+        }
+
+        return removed;
+    }
+
+    private int compactParagraphs(Class spanClass) {
+        final Object[] spans = text.getSpans(0, text.length(), spanClass);
+        final long[] order = getSortedOrder(text, spans);
+        int removed = 0;
+
+        // Spans with same start position are checked against each other for duplicates
+        int groupStart = 0;
+        for (int i = 0; i < order.length; i++) {
+            final Object span = spans[(int) order[i]];
+            final int spanStart = boundsStart(order[i]);
+            final int spanEnd = text.getSpanEnd(span);
+
+            if (i > 0 && boundsStart(order[i - 1]) != spanStart) {
+                groupStart = i;
+            }
+
+            boolean duplicate = spanStart == spanEnd;
+            for (int j = groupStart; j < i && !duplicate; j++) {
+                final Object other = spans[(int) order[j]];
+                duplicate = text.getSpanStart(other) != -1 && text.getSpanEnd(other) == spanEnd;
+            }
+
+            if (duplicate) {
+                text.removeSpan(span);
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    private static boolean isSameLink(Object span, Object other) {
+        if (!(span instanceof KnifeSpan.Link)) {
+            return true;
+        }
+        final String url = ((KnifeSpan.Link) span).getURL();
+        final String otherUrl = ((KnifeSpan.Link) other).getURL();
+        return url == null ? otherUrl == null : url.equals(otherUrl);
+    }
+
+    // Paragraph spans logic =======================================================================
+
+    private void setParagraph(Class spanClass, int start, int end) {
+        // Getting selection's paragraph bounds
+        start = findLineStart(text, start);
+        end = findLineEnd(text, end);
+
+        // Adding new span for each line in selection which does not contain same span yet
+        int lineStart = start;
+
+        while (lineStart < end) {
+            int lineEnd = findLineEnd(text, lineStart);
+            if (!containsSpan(text, spanClass, lineStart, lineEnd) && lineStart != lineEnd) {
+                text.setSpan(createSpan(spanClass, currentUrl),
+                        lineStart, lineEnd, KnifeSpanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private void removeParagraph(Class spanClass, int start, int end) {
+        // Getting selection's paragraph bounds
+        start = findLineStart(text, start);
+        end = findLineEnd(text, end);
+
+        // Removing spans within the bounds
+        final Object[] spans = text.getSpans(start, end, spanClass);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            text.removeSpan(spans[i]);
+        }
+    }
+
+    private boolean isFullOfParagraphs(Class spanClass, int start, int end) {
+        // Getting selection's paragraph bounds
+        start = findLineStart(text, start);
+        end = findLineEnd(text, end);
+
+        if (start == end) {
+            return false;
+        }
+
+        // Spans touching empty first or last line are not returned for the paragraph bounds
+        final Object[] spans = text.getSpans(Math.max(start - 1, 0),
+                Math.min(end + 1, text.length()), spanClass);
+        return isFullOfParagraphs(text, spans, start, end);
+    }
+
+    // Start and end should be paragraph bounds
+    private static boolean isFullOfParagraphs(KnifeSpanned text, Object[] spans,
+            int start, int end) {
+        final long[] bounds = getSortedBounds(text, spans);
+
+        int next = 0;
+        int maxEnd = -1; // Max end of non-empty spans starting before current line end
+        int maxEmpty = -1; // Max position of empty spans starting before current line end
+
+        // Checking each line for paragraph span, same way as getSpans(lineStart, lineEnd) does
+        int lineStart = start;
+
+        while (lineStart <= end) {
+            int lineEnd = findLineEnd(text, lineStart);
+
+            for (; next < bounds.length && boundsStart(bounds[next]) < lineEnd; next++) {
+                final int spanStart = boundsStart(bounds[next]);
+                final int spanEnd = boundsEnd(bounds[next]);
+                if (spanStart == spanEnd) {
+                    maxEmpty = Math.max(maxEmpty, spanStart);
+                } else {
+                    maxEnd = Math.max(maxEnd, spanEnd);
+                }
+            }
+
+            final boolean startsAtLineEnd =
+                    next < bounds.length && boundsStart(bounds[next]) == lineEnd;
+
+            final boolean found;
+            if (lineStart == lineEnd) {
+                found = maxEnd >= lineStart || startsAtLineEnd;
+            } else {
+                // Empty spans are ordered first among spans with same start position
+                found = maxEnd > lineStart || maxEmpty >= lineStart
+                        || (startsAtLineEnd && boundsEnd(bounds[next]) == lineEnd);
+            }
+
+            if (!found) {
+                return false;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return true;
+    }
+
+    private void fixParagraphs(Class spanClass, int start, int end) {
+        final Object[] spans = text.getSpans(start, end, spanClass);
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            int spanStart = text.getSpanStart(spans[i]);
+            int spanEnd = text.getSpanEnd(spans[i]);
+            int paragraphStart = findLineStart(text, spanStart);
+            int paragraphEnd = findLineEnd(text, spanEnd);
+
+            if (spanStart == paragraphStart && spanEnd == paragraphEnd) {
+                continue;
+            }
+
+            text.removeSpan(spans[i]);
+
+            // Adding new bullets for each line in selection
+            int lineStart = paragraphStart;
+
+            while (lineStart < paragraphEnd) {
+                int lineEnd = findLineEnd(text, lineStart);
+                if (!containsSpan(text, spanClass, lineStart, lineEnd) && lineStart != lineEnd) {
+                    text.setSpan(createSpan(spanClass, currentUrl),
+                            lineStart, lineEnd, KnifeSpanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                lineStart = lineEnd + 1;
+            }
+        }
+    }
+
+    // Helper ======================================================================================
+
+    // Returns cursor position just after the previous \n or 0
+    static int findLineStart(CharSequence text, int pos) {
+        if (text instanceof KnifeLineIndex.Provider) {
+            return ((KnifeLineIndex.Provider) text).getLineIndex().findLineStart(pos);
+        }
+        if (pos < 0 || pos > text.length()) {
+            return -1;
+        }
+        if (pos == 0) {
+            return 0;
+        }
+        for (int i = pos - 1; i >= 0; i--) {
+            if (text.charAt(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    // Returns cursor position just before the next \n or text length
+    static int findLineEnd(CharSequence text, int pos) {
+        if (text instanceof KnifeLineIndex.Provider) {
+            return ((KnifeLineIndex.Provider) text).getLineIndex().findLineEnd(pos);
+        }
+        if (pos < 0 || pos > text.length()) {
+            return -1;
+        }
+        if (pos == text.length()) {
+            return text.length();
+        }
+        for (int i = pos; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                return i;
+            }
+        }
+        return text.length();
+    }
+
+    private static boolean containsSpan(KnifeSpanned text, Class spanClass, int start, int end) {
+        return text.getSpans(start, end, spanClass).length > 0;
+    }
+
+    // Returns spans bounds packed as (start << 32 | end), sorted by start and then by end
+    private static long[] getSortedBounds(KnifeSpanned text, Object[] spans) {
+        final long[] bounds = new long[spans.length];
+        for (int i = 0; i < spans.length; i++) {
+            bounds[i] = (long) text.getSpanStart(spans[i]) << 32 | text.getSpanEnd(spans[i]);
+        }
+        Arrays.sort(bounds);
+        return bounds;
+    }
+
+    // Returns spans indices packed as (start << 32 | index), sorted by start position
+    private static long[] getSortedOrder(KnifeSpanned text, Object[] spans) {
+        final long[] order = new long[spans.length];
+        for (int i = 0; i < spans.length; i++) {
+            order[i] = (long) text.getSpanStart(spans[i]) << 32 | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
+
+    private static int boundsStart(long bounds) {
+        return (int) (bounds >>> 32);
+    }
+
+    private static int boundsEnd(long bounds) {
+        return (int) bounds;
+    }
+
+}
@@ -0,0 +1,15 @@
+package io.github.mthli.knife;
+
+public interface KnifeEditable extends KnifeSpannable {
+
+    KnifeEditable replace(int start, int end, CharSequence text);
+
+    KnifeEditable insert(int where, CharSequence text);
+
+    KnifeEditable delete(int start, int end);
+
+    KnifeEditable append(CharSequence text);
+
+    KnifeEditable append(char c);
+
+}
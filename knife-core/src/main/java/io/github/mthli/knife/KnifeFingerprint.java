@@ -0,0 +1,142 @@
+package io.github.mthli.knife;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash of a text chars along with formats applied to each char. Texts with same chars and same
+ * formats have same fingerprint, no matter how their spans are split or in which order they
+ * were added. Empty spans, spans which are not Knife spans and formats of line breaks
+ * are ignored.
+ * <p>
+ * Hash is polynomial over chars, so that hashes of {@link KnifeFragments} can be combined into
+ * the hash of the whole text, and only fragments touched by changes are hashed again.
+ */
+class KnifeFingerprint {
+
+    private static final long BASE = 0x100000001B3L;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private final KnifeFragments fragments;
+    private KnifeSpanned text;
+    private int version = -1; // Fragments version of the value
+    private int length;
+    private long value;
+
+    KnifeFingerprint(KnifeFragments fragments) {
+        this.fragments = fragments;
+    }
+
+    /**
+     * Returns same value as {@link #of(KnifeSpanned)}, hashing only changed fragments.
+     * Value for unchanged text is returned without walking the fragments.
+     */
+    long get(KnifeSpanned text) {
+        if (this.text == text && version == fragments.getVersion()
+                && length == text.length()) {
+            return value;
+        }
+
+        final List<KnifeFragments.Fragment> list = fragments.get(text);
+        long hash = 0L;
+        int position = 0;
+
+        for (int i = 0, size = list.size(); i < size; i++) {
+            final KnifeFragments.Fragment fragment = list.get(i);
+            if (!fragment.hashed) {
+                hash(text, position, fragment);
+            }
+            hash = hash * fragment.power + fragment.hash;
+            position += fragment.length;
+        }
+
+        this.text = text;
+        version = fragments.getVersion();
+        length = text.length();
+        value = hash;
+        return value;
+    }
+
+    /**
+     * Returns fingerprint of the whole text.
+     */
+    static long of(KnifeSpanned text) {
+        final KnifeFragments.Fragment whole = new KnifeFragments.Fragment(text.length());
+        hash(text, 0, whole);
+        return whole.hash;
+    }
+
+    private static void hash(KnifeSpanned text, int start, KnifeFragments.Fragment fragment) {
+        final int end = start + fragment.length;
+
+        // Bounds of non-empty spans within the range, packed as (position << 32 | index << 1),
+        // with the lowest bit set for span starts
+        final KnifeSpan[] spans = text.getSpans(start, end, KnifeSpan.class);
+        final SpanType[] types = new SpanType[spans.length];
+        final long[] bounds = new long[spans.length * 2];
+        int count = 0;
+
+        for (int i = 0; i < spans.length; i++) {
+            final int spanStart = Math.max(text.getSpanStart(spans[i]), start);
+            final int spanEnd = Math.min(text.getSpanEnd(spans[i]), end);
+            types[i] = SpanType.ofSpan(spans[i]);
+            if (types[i] != null && spanStart < spanEnd) {
+                bounds[count++] = (long) spanStart << 32 | i << 1 | 1;
+                bounds[count++] = (long) spanEnd << 32 | i << 1;
+            }
+        }
+        Arrays.sort(bounds, 0, count);
+
+        // Number of spans of each type and of links with each URL covering current position.
+        // Hashes of covering URLs are summed so that order of overlapping links does not matter.
+        final int[] covering = new int[SpanType.all().length];
+        final Map<String, Integer> coveringUrls = new HashMap<>();
+        int flags = 0;
+        long links = 0L;
+
+        long hash = 0L;
+        long power = 1L;
+        int next;
+
+        for (int i = start, k = 0; i < end; i = next) {
+            for (; k < count && (int) (bounds[k] >>> 32) == i; k++) {
+                final int index = (int) bounds[k] >>> 1;
+                final int id = types[index].getId();
+                final int change = ((int) bounds[k] & 1) == 1 ? 1 : -1;
+
+                covering[id] += change;
+                flags = covering[id] > 0 ? flags | 1 << id : flags & ~(1 << id);
+                if (spans[index] instanceof KnifeSpan.Link) {
+                    final String url = ((KnifeSpan.Link) spans[index]).getURL();
+                    final Integer urlCount = coveringUrls.get(url);
+                    final int newCount = (urlCount == null ? 0 : urlCount) + change;
+                    coveringUrls.put(url, newCount);
+                    // Overlapping links with same URL are same as a single link
+                    if (newCount == 0 || newCount == 1 && change == 1) {
+                        links += change * urlHash(url);
+                    }
+                }
+            }
+            next = k < count ? (int) (bounds[k] >>> 32) : end;
+
+            final long formats = (flags + (links << 32)) * MIX;
+            for (int j = i; j < next; j++) {
+                final char c = text.charAt(j);
+                // Formats of line breaks are not visible, e.g. in HTML, so they are ignored
+                hash = hash * BASE + ((c + 1L) * MIX ^ (c == '\n' ? 0L : formats));
+                power *= BASE;
+            }
+        }
+
+        fragment.hash = hash;
+        fragment.power = power;
+        fragment.hashed = true;
+    }
+
+    private static long urlHash(String url) {
+        return url == null ? 0L : url.hashCode() + 1L;
+    }
+
+}
@@ -0,0 +1,292 @@
+package io.github.mthli.knife;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a text into fragments and tracks which of them were touched by changes, so that results
+ * computed for unchanged fragments can be kept between calls, see {@link KnifeHtmlCache} and
+ * {@link KnifeFingerprint}. Text and span changes should be reported while it is in use.
+ * <p>
+ * Fragments are split at line starts which are not covered by paragraph spans, output of
+ * {@link KnifeParser} for the whole text is the same as for its fragments written one by one.
+ */
+class KnifeFragments {
+
+    // Fragments are kept in a gap array along with their starts, same as line breaks are kept
+    // in KnifeLineIndex: starts before the gap are stored as is, starts after the gap are
+    // stored as distances to the text end. Fragments touched by a change are found with
+    // a binary search, and the change only moves the gap next to them.
+    private Fragment[] fragments = new Fragment[16];
+    private int[] starts = new int[16];
+    private int gapStart;
+    private int gapEnd = fragments.length;
+
+    private final List<Fragment> list = new AbstractList<Fragment>() {
+        @Override
+        public Fragment get(int index) {
+            return fragment(index);
+        }
+
+        @Override
+        public int size() {
+            return KnifeFragments.this.size();
+        }
+    };
+
+    private KnifeSpanned text;
+    private int length;
+    private int version; // Incremented on any change
+
+    /**
+     * Should be called after text in start..start+before range was replaced with count chars.
+     */
+    void onTextChanged(int start, int before, int count) {
+        if (text == null) {
+            return;
+        }
+
+        // Fragments touching the change are merged into a single fragment to be split again
+        final int first = findFirstEndingAt(start);
+        final int last = findLastStartingAt(start + before);
+        if (first > last) {
+            clear(); // Change is out of the known text, should not happen
+            return;
+        }
+
+        moveGap(first + 1);
+        final Fragment merged = fragments[first];
+        for (int i = gapEnd; i < gapEnd + last - first; i++) {
+            merged.length += fragments[i].length;
+            fragments[i] = null;
+        }
+        gapEnd += last - first;
+
+        merged.length += count - before;
+        merged.setChanged();
+        length += count - before;
+        version++;
+    }
+
+    /**
+     * Should be called for both old and new bounds of any added, removed or changed Knife span.
+     */
+    void onSpanChanged(int start, int end) {
+        if (text == null) {
+            return;
+        }
+
+        final int size = size();
+        for (int i = findFirstEndingAt(start); i < size && getStart(i) <= end; i++) {
+            fragment(i).setChanged();
+            version++;
+        }
+    }
+
+    void clear() {
+        text = null;
+        Arrays.fill(fragments, null);
+        gapStart = 0;
+        gapEnd = fragments.length;
+        length = 0;
+        version++;
+    }
+
+    /**
+     * Returns number which is changed each time the text is changed.
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns fragments of given text, changed fragments are split again by the current line
+     * bounds and have no results. Returned list should not be modified.
+     */
+    List<Fragment> get(KnifeSpanned text) {
+        if (this.text != text || length != text.length()) {
+            clear();
+            this.text = text;
+            length = text.length();
+            final Fragment whole = new Fragment(length);
+            whole.setChanged();
+            fragments[gapStart++] = whole;
+            starts[0] = 0;
+        }
+
+        List<Fragment> updated = null;
+        int position = 0;
+
+        for (int i = 0, size = size(); i < size; ) {
+            final Fragment fragment = fragment(i);
+            if (!fragment.changed) {
+                if (updated != null) {
+                    updated.add(fragment);
+                }
+                position += fragment.length;
+                i++;
+                continue;
+            }
+
+            if (updated == null) {
+                updated = new ArrayList<>(list.subList(0, i));
+            }
+
+            // Splitting all sequential changed fragments by the current line bounds
+            int end = position;
+            for (; i < size && fragment(i).changed; i++) {
+                end += fragment(i).length;
+            }
+
+            int fragmentStart = position;
+            while (fragmentStart < end) {
+                final int fragmentEnd = findFragmentEnd(text, fragmentStart, end);
+                updated.add(new Fragment(fragmentEnd - fragmentStart));
+                fragmentStart = fragmentEnd;
+            }
+            position = end;
+        }
+
+        if (updated != null) {
+            setFragments(updated);
+        }
+        return list;
+    }
+
+    private int size() {
+        return gapStart + fragments.length - gapEnd;
+    }
+
+    private Fragment fragment(int index) {
+        return fragments[index < gapStart ? index : index + gapEnd - gapStart];
+    }
+
+    private int getStart(int index) {
+        return index < gapStart ? starts[index] : length - starts[index + gapEnd - gapStart];
+    }
+
+    // Returns index of the first fragment which ends at or after given position
+    private int findFirstEndingAt(int pos) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getStart(mid) + fragment(mid).length < pos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Returns index of the last fragment which starts at or before given position
+    private int findLastStartingAt(int pos) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getStart(mid) <= pos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    // Moves the gap so that fragments before given index are before the gap
+    private void moveGap(int index) {
+        while (gapStart > index) {
+            gapStart--;
+            gapEnd--;
+            fragments[gapEnd] = fragments[gapStart];
+            fragments[gapStart] = null;
+            starts[gapEnd] = length - starts[gapStart];
+        }
+        while (gapStart < index) {
+            fragments[gapStart] = fragments[gapEnd];
+            fragments[gapEnd] = null;
+            starts[gapStart] = length - starts[gapEnd];
+            gapStart++;
+            gapEnd++;
+        }
+    }
+
+    // Replaces all fragments, leaving the gap at the end, which is never empty
+    private void setFragments(List<Fragment> updated) {
+        final int size = updated.size();
+        if (size >= fragments.length) {
+            fragments = new Fragment[Math.max(size + 1, fragments.length * 2)];
+            starts = new int[fragments.length];
+        } else {
+            Arrays.fill(fragments, null);
+        }
+
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            fragments[i] = updated.get(i);
+            starts[i] = position;
+            position += fragments[i].length;
+        }
+        gapStart = size;
+        gapEnd = fragments.length;
+    }
+
+    // Returns next line start which can end a fragment, or the limit
+    private static int findFragmentEnd(KnifeSpanned text, int start, int limit) {
+        int lineEnd = KnifeDocument.findLineEnd(text, start);
+        while (lineEnd + 1 < limit) {
+            if (canSplitAt(text, lineEnd + 1)) {
+                return lineEnd + 1;
+            }
+            lineEnd = KnifeDocument.findLineEnd(text, lineEnd + 1);
+        }
+        return limit;
+    }
+
+    // Paragraph spans covering the line break before the position are written as a single block
+    private static boolean canSplitAt(KnifeSpanned text, int position) {
+        final Object[] spans = text.getSpans(position - 1, position, KnifeSpan.Paragraph.class);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            if (text.getSpanStart(spans[i]) < position && text.getSpanEnd(spans[i]) >= position) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Part of the text along with results computed for it, results are dropped on any change.
+     */
+    static class Fragment {
+        int length;
+        boolean changed; // Whether the fragment should be split again
+
+        // HTML written by KnifeHtmlCache, or null if not converted yet
+        String html;
+        int first;
+        String pending;
+
+        // Hash computed by KnifeFingerprint, valid only if hashed is true
+        boolean hashed;
+        long hash;
+        long power;
+
+        Fragment(int length) {
+            this.length = length;
+        }
+
+        private void setChanged() {
+            changed = true;
+            html = null;
+            pending = null;
+            hashed = false;
+        }
+    }
+
+}
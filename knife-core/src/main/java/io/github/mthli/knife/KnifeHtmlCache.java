@@ -0,0 +1,95 @@
+package io.github.mthli.knife;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Keeps HTML of a text split into {@link KnifeFragments}, so that only fragments touched by
+ * changes are converted again. Output of {@link KnifeParser} for the whole text is the same as
+ * for its fragments written one by one.
+ */
+class KnifeHtmlCache {
+
+    private final KnifeFragments fragments;
+
+    KnifeHtmlCache(KnifeFragments fragments) {
+        this.fragments = fragments;
+    }
+
+    String getHtml(KnifeSpanned text) {
+        final StringBuilder out = new StringBuilder();
+        try {
+            writeHtml(text, out);
+        } catch (IOException e) {
+            throw new AssertionError(e); // StringBuilder does not throw IOException
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes same HTML as {@link KnifeParser#toHtml(KnifeSpanned, Appendable)}, converting only
+     * changed fragments.
+     */
+    void writeHtml(KnifeSpanned text, Appendable appendable) throws IOException {
+        final List<KnifeFragments.Fragment> list = fragments.get(text);
+
+        if (hasEmptyParagraphs(text, list)) {
+            // Empty paragraph spans can change conversion of the neighbour lines, so fragments
+            // are not used until such spans are removed
+            KnifeParser.toHtml(text, appendable);
+            return;
+        }
+
+        final KnifeHtmlWriter out = new KnifeHtmlWriter(appendable);
+        int position = 0;
+
+        for (int i = 0, size = list.size(); i < size; i++) {
+            final KnifeFragments.Fragment fragment = list.get(i);
+            if (fragment.html == null) {
+                convert(text, position, fragment);
+            }
+            out.appendOutput(fragment.html, fragment.first, fragment.pending);
+            position += fragment.length;
+        }
+
+        out.flush();
+    }
+
+    private static void convert(KnifeSpanned text, int start, KnifeFragments.Fragment fragment)
+            throws IOException {
+        final StringBuilder html = new StringBuilder();
+        final KnifeHtmlWriter out = new KnifeHtmlWriter(html);
+        KnifeParser.withinHtml(out, text, start, start + fragment.length);
+
+        fragment.html = html.toString();
+        fragment.first = out.getFirst();
+        fragment.pending = out.getPending();
+    }
+
+    // Spans can only become empty within changed fragments, so only these are checked
+    private static boolean hasEmptyParagraphs(KnifeSpanned text,
+            List<KnifeFragments.Fragment> list) {
+        int position = 0;
+        for (int i = 0, size = list.size(); i < size; i++) {
+            final KnifeFragments.Fragment fragment = list.get(i);
+            if (fragment.html == null
+                    && hasEmptyParagraphs(text, position, position + fragment.length)) {
+                return true;
+            }
+            position += fragment.length;
+        }
+        return false;
+    }
+
+    private static boolean hasEmptyParagraphs(KnifeSpanned text, int start, int end) {
+        final Object[] spans = text.getSpans(start, end, KnifeSpan.Paragraph.class);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            if (text.getSpanStart(spans[i]) == text.getSpanEnd(spans[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,135 @@
+package io.github.mthli.knife;
+
+import java.io.IOException;
+
+/**
+ * Writes HTML markup into given {@link Appendable}, merging adjacent lists and dropping line breaks
+ * right after lists and quotes while writing, instead of fixing the whole output afterwards.
+ */
+class KnifeHtmlWriter {
+
+    private static final String LIST_START = "<ul>";
+    private static final String LIST_END = "</ul>";
+    private static final String QUOTE_END = "</blockquote>";
+    private static final String LINE_BREAK = "<br>";
+
+    // Kinds of the first operation, the only one which depends on output written before
+    static final int FIRST_NONE = 0;
+    static final int FIRST_APPEND = 1;
+    static final int FIRST_LIST_START = 2;
+    static final int FIRST_LINE_BREAK = 3;
+
+    private final Appendable out;
+    private final char[] digits = new char[10];
+
+    // Closing tag which is not written yet, since it can be merged with the next tag
+    private String pending;
+    private int first = FIRST_NONE;
+
+    KnifeHtmlWriter(Appendable out) {
+        this.out = out;
+    }
+
+    int getFirst() {
+        return first;
+    }
+
+    String getPending() {
+        return pending;
+    }
+
+    /**
+     * Appends output of another writer, which was written without anything before it and was not
+     * flushed, the same way as if it was written directly by this writer.
+     */
+    void appendOutput(CharSequence output, int outputFirst, String outputPending)
+            throws IOException {
+        if (outputFirst == FIRST_NONE) {
+            return;
+        }
+        if (first == FIRST_NONE) {
+            first = outputFirst;
+        }
+
+        if (outputFirst == FIRST_LIST_START && pending == LIST_END) {
+            pending = null; // Continuing previous list
+            out.append(output, LIST_START.length(), output.length());
+        } else if (outputFirst == FIRST_LINE_BREAK && pending != null) {
+            flush(); // List or quote already ends with a line break
+            out.append(output, LINE_BREAK.length(), output.length());
+        } else {
+            flush();
+            out.append(output);
+        }
+        pending = outputPending;
+    }
+
+    void startList() throws IOException {
+        if (first == FIRST_NONE) {
+            first = FIRST_LIST_START;
+        }
+        if (pending == LIST_END) {
+            pending = null; // Continuing previous list
+        } else {
+            append(LIST_START);
+        }
+    }
+
+    void endList() throws IOException {
+        flush();
+        pending = LIST_END;
+    }
+
+    void endQuote() throws IOException {
+        flush();
+        pending = QUOTE_END;
+    }
+
+    void lineBreak() throws IOException {
+        if (first == FIRST_NONE) {
+            first = FIRST_LINE_BREAK;
+        }
+        if (pending != null) {
+            flush(); // List or quote already ends with a line break
+        } else {
+            out.append(LINE_BREAK);
+        }
+    }
+
+    void append(String markup) throws IOException {
+        flush();
+        out.append(markup);
+    }
+
+    void append(char c) throws IOException {
+        flush();
+        out.append(c);
+    }
+
+    void appendCharRef(int codepoint) throws IOException {
+        flush();
+
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + codepoint % 10);
+            codepoint /= 10;
+        } while (codepoint > 0);
+
+        out.append("&#");
+        for (int i = pos; i < digits.length; i++) {
+            out.append(digits[i]);
+        }
+        out.append(';');
+    }
+
+    void flush() throws IOException {
+        if (first == FIRST_NONE) {
+            first = FIRST_APPEND;
+        }
+        if (pending != null) {
+            out.append(pending);
+            pending = null;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package io.github.mthli.knife;
+
+import java.util.Arrays;
+
+/**
+ * Positions of line breaks in a text, updated on text changes, so that line bounds can be found
+ * with a binary search instead of scanning the text.
+ * <p>
+ * Positions are kept in a gap array: positions before the gap are stored as is, positions after
+ * the gap are stored as distances to the text end. Changing the text only moves the gap to the
+ * change position, so positions after the change do not need to be shifted.
+ */
+class KnifeLineIndex {
+
+    private int[] breaks = new int[16];
+    private int gapStart;
+    private int gapEnd = breaks.length;
+    private int length;
+
+    KnifeLineIndex(CharSequence text) {
+        replace(0, 0, text, 0, text.length());
+    }
+
+    /**
+     * Should be called after text in start..start+before range was replaced with given chars.
+     */
+    void replace(int start, int before, CharSequence text, int from, int to) {
+        moveGap(start);
+
+        // Dropping removed line breaks, which are the first ones after the gap
+        final int removedEnd = start + before;
+        while (gapEnd < breaks.length && length - breaks[gapEnd] < removedEnd) {
+            gapEnd++;
+        }
+
+        length += to - from - before;
+
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == '\n') {
+                if (gapStart == gapEnd) {
+                    grow();
+                }
+                breaks[gapStart++] = start + i - from;
+            }
+        }
+    }
+
+    // Returns cursor position just after the previous \n or 0
+    int findLineStart(int pos) {
+        if (pos < 0 || pos > length) {
+            return -1;
+        }
+        final int index = lowerBound(pos);
+        return index == 0 ? 0 : get(index - 1) + 1;
+    }
+
+    // Returns cursor position just before the next \n or text length
+    int findLineEnd(int pos) {
+        if (pos < 0 || pos > length) {
+            return -1;
+        }
+        final int index = lowerBound(pos);
+        return index == size() ? length : get(index);
+    }
+
+    private int size() {
+        return gapStart + breaks.length - gapEnd;
+    }
+
+    private int get(int index) {
+        return index < gapStart ? breaks[index] : length - breaks[index + gapEnd - gapStart];
+    }
+
+    // Returns index of the first line break at or after given position
+    private int lowerBound(int pos) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (get(mid) < pos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Moves the gap so that line breaks before position are before the gap and others are after
+    private void moveGap(int pos) {
+        while (gapStart > 0 && breaks[gapStart - 1] >= pos) {
+            breaks[--gapEnd] = length - breaks[--gapStart];
+        }
+        while (gapEnd < breaks.length && length - breaks[gapEnd] < pos) {
+            breaks[gapStart++] = length - breaks[gapEnd++];
+        }
+    }
+
+    private void grow() {
+        final int tailSize = breaks.length - gapEnd;
+        final int[] grown = Arrays.copyOf(breaks, breaks.length * 2);
+        System.arraycopy(breaks, gapEnd, grown, grown.length - tailSize, tailSize);
+        gapEnd = grown.length - tailSize;
+        breaks = grown;
+    }
+
+
+    /**
+     * Text which keeps its own line index up to date.
+     */
+    interface Provider {
+        KnifeLineIndex getLineIndex();
+    }
+
+}
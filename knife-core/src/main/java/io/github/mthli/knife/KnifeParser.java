@@ -0,0 +1,708 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+class KnifeParser {
+
+    // HTML 4 entities, which Html.fromHtml() decodes as well, and &apos;
+    private static final Map<String, Character> ENTITIES = new HashMap<>(512);
+
+    // Names of entities for chars from U+00A0 to U+00FF
+    private static final String[] LATIN1_ENTITIES = {
+            "nbsp", "iexcl", "cent", "pound", "curren", "yen", "brvbar", "sect", "uml", "copy",
+            "ordf", "laquo", "not", "shy", "reg", "macr", "deg", "plusmn", "sup2", "sup3", "acute",
+            "micro", "para", "middot", "cedil", "sup1", "ordm", "raquo", "frac14", "frac12",
+            "frac34", "iquest", "Agrave", "Aacute", "Acirc", "Atilde", "Auml", "Aring", "AElig",
+            "Ccedil", "Egrave", "Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc", "Iuml",
+            "ETH", "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml", "times", "Oslash",
+            "Ugrave", "Uacute", "Ucirc", "Uuml", "Yacute", "THORN", "szlig", "agrave", "aacute",
+            "acirc", "atilde", "auml", "aring", "aelig", "ccedil", "egrave", "eacute", "ecirc",
+            "euml", "igrave", "iacute", "icirc", "iuml", "eth", "ntilde", "ograve", "oacute",
+            "ocirc", "otilde", "ouml", "divide", "oslash", "ugrave", "uacute", "ucirc", "uuml",
+            "yacute", "thorn", "yuml"
+    };
+
+    static {
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("apos", '\'');
+
+        for (int i = 0; i < LATIN1_ENTITIES.length; i++) {
+            ENTITIES.put(LATIN1_ENTITIES[i], (char) (0xA0 + i));
+        }
+
+        // Latin Extended, Greek, punctuation and math symbols
+        ENTITIES.put("OElig", '\u0152');
+        ENTITIES.put("oelig", '\u0153');
+        ENTITIES.put("Scaron", '\u0160');
+        ENTITIES.put("scaron", '\u0161');
+        ENTITIES.put("Yuml", '\u0178');
+        ENTITIES.put("fnof", '\u0192');
+        ENTITIES.put("circ", '\u02C6');
+        ENTITIES.put("tilde", '\u02DC');
+        ENTITIES.put("Alpha", '\u0391');
+        ENTITIES.put("Beta", '\u0392');
+        ENTITIES.put("Gamma", '\u0393');
+        ENTITIES.put("Delta", '\u0394');
+        ENTITIES.put("Epsilon", '\u0395');
+        ENTITIES.put("Zeta", '\u0396');
+        ENTITIES.put("Eta", '\u0397');
+        ENTITIES.put("Theta", '\u0398');
+        ENTITIES.put("Iota", '\u0399');
+        ENTITIES.put("Kappa", '\u039A');
+        ENTITIES.put("Lambda", '\u039B');
+        ENTITIES.put("Mu", '\u039C');
+        ENTITIES.put("Nu", '\u039D');
+        ENTITIES.put("Xi", '\u039E');
+        ENTITIES.put("Omicron", '\u039F');
+        ENTITIES.put("Pi", '\u03A0');
+        ENTITIES.put("Rho", '\u03A1');
+        ENTITIES.put("Sigma", '\u03A3');
+        ENTITIES.put("Tau", '\u03A4');
+        ENTITIES.put("Upsilon", '\u03A5');
+        ENTITIES.put("Phi", '\u03A6');
+        ENTITIES.put("Chi", '\u03A7');
+        ENTITIES.put("Psi", '\u03A8');
+        ENTITIES.put("Omega", '\u03A9');
+        ENTITIES.put("alpha", '\u03B1');
+        ENTITIES.put("beta", '\u03B2');
+        ENTITIES.put("gamma", '\u03B3');
+        ENTITIES.put("delta", '\u03B4');
+        ENTITIES.put("epsilon", '\u03B5');
+        ENTITIES.put("zeta", '\u03B6');
+        ENTITIES.put("eta", '\u03B7');
+        ENTITIES.put("theta", '\u03B8');
+        ENTITIES.put("iota", '\u03B9');
+        ENTITIES.put("kappa", '\u03BA');
+        ENTITIES.put("lambda", '\u03BB');
+        ENTITIES.put("mu", '\u03BC');
+        ENTITIES.put("nu", '\u03BD');
+        ENTITIES.put("xi", '\u03BE');
+        ENTITIES.put("omicron", '\u03BF');
+        ENTITIES.put("pi", '\u03C0');
+        ENTITIES.put("rho", '\u03C1');
+        ENTITIES.put("sigmaf", '\u03C2');
+        ENTITIES.put("sigma", '\u03C3');
+        ENTITIES.put("tau", '\u03C4');
+        ENTITIES.put("upsilon", '\u03C5');
+        ENTITIES.put("phi", '\u03C6');
+        ENTITIES.put("chi", '\u03C7');
+        ENTITIES.put("psi", '\u03C8');
+        ENTITIES.put("omega", '\u03C9');
+        ENTITIES.put("thetasym", '\u03D1');
+        ENTITIES.put("upsih", '\u03D2');
+        ENTITIES.put("piv", '\u03D6');
+        ENTITIES.put("ensp", '\u2002');
+        ENTITIES.put("emsp", '\u2003');
+        ENTITIES.put("thinsp", '\u2009');
+        ENTITIES.put("zwnj", '\u200C');
+        ENTITIES.put("zwj", '\u200D');
+        ENTITIES.put("lrm", '\u200E');
+        ENTITIES.put("rlm", '\u200F');
+        ENTITIES.put("ndash", '\u2013');
+        ENTITIES.put("mdash", '\u2014');
+        ENTITIES.put("lsquo", '\u2018');
+        ENTITIES.put("rsquo", '\u2019');
+        ENTITIES.put("sbquo", '\u201A');
+        ENTITIES.put("ldquo", '\u201C');
+        ENTITIES.put("rdquo", '\u201D');
+        ENTITIES.put("bdquo", '\u201E');
+        ENTITIES.put("dagger", '\u2020');
+        ENTITIES.put("Dagger", '\u2021');
+        ENTITIES.put("bull", '\u2022');
+        ENTITIES.put("hellip", '\u2026');
+        ENTITIES.put("permil", '\u2030');
+        ENTITIES.put("prime", '\u2032');
+        ENTITIES.put("Prime", '\u2033');
+        ENTITIES.put("lsaquo", '\u2039');
+        ENTITIES.put("rsaquo", '\u203A');
+        ENTITIES.put("oline", '\u203E');
+        ENTITIES.put("frasl", '\u2044');
+        ENTITIES.put("euro", '\u20AC');
+        ENTITIES.put("image", '\u2111');
+        ENTITIES.put("weierp", '\u2118');
+        ENTITIES.put("real", '\u211C');
+        ENTITIES.put("trade", '\u2122');
+        ENTITIES.put("alefsym", '\u2135');
+        ENTITIES.put("larr", '\u2190');
+        ENTITIES.put("uarr", '\u2191');
+        ENTITIES.put("rarr", '\u2192');
+        ENTITIES.put("darr", '\u2193');
+        ENTITIES.put("harr", '\u2194');
+        ENTITIES.put("crarr", '\u21B5');
+        ENTITIES.put("lArr", '\u21D0');
+        ENTITIES.put("uArr", '\u21D1');
+        ENTITIES.put("rArr", '\u21D2');
+        ENTITIES.put("dArr", '\u21D3');
+        ENTITIES.put("hArr", '\u21D4');
+        ENTITIES.put("forall", '\u2200');
+        ENTITIES.put("part", '\u2202');
+        ENTITIES.put("exist", '\u2203');
+        ENTITIES.put("empty", '\u2205');
+        ENTITIES.put("nabla", '\u2207');
+        ENTITIES.put("isin", '\u2208');
+        ENTITIES.put("notin", '\u2209');
+        ENTITIES.put("ni", '\u220B');
+        ENTITIES.put("prod", '\u220F');
+        ENTITIES.put("sum", '\u2211');
+        ENTITIES.put("minus", '\u2212');
+        ENTITIES.put("lowast", '\u2217');
+        ENTITIES.put("radic", '\u221A');
+        ENTITIES.put("prop", '\u221D');
+        ENTITIES.put("infin", '\u221E');
+        ENTITIES.put("ang", '\u2220');
+        ENTITIES.put("and", '\u2227');
+        ENTITIES.put("or", '\u2228');
+        ENTITIES.put("cap", '\u2229');
+        ENTITIES.put("cup", '\u222A');
+        ENTITIES.put("int", '\u222B');
+        ENTITIES.put("there4", '\u2234');
+        ENTITIES.put("sim", '\u223C');
+        ENTITIES.put("cong", '\u2245');
+        ENTITIES.put("asymp", '\u2248');
+        ENTITIES.put("ne", '\u2260');
+        ENTITIES.put("equiv", '\u2261');
+        ENTITIES.put("le", '\u2264');
+        ENTITIES.put("ge", '\u2265');
+        ENTITIES.put("sub", '\u2282');
+        ENTITIES.put("sup", '\u2283');
+        ENTITIES.put("nsub", '\u2284');
+        ENTITIES.put("sube", '\u2286');
+        ENTITIES.put("supe", '\u2287');
+        ENTITIES.put("oplus", '\u2295');
+        ENTITIES.put("otimes", '\u2297');
+        ENTITIES.put("perp", '\u22A5');
+        ENTITIES.put("sdot", '\u22C5');
+        ENTITIES.put("lceil", '\u2308');
+        ENTITIES.put("rceil", '\u2309');
+        ENTITIES.put("lfloor", '\u230A');
+        ENTITIES.put("rfloor", '\u230B');
+        ENTITIES.put("lang", '\u2329');
+        ENTITIES.put("rang", '\u232A');
+        ENTITIES.put("loz", '\u25CA');
+        ENTITIES.put("spades", '\u2660');
+        ENTITIES.put("clubs", '\u2663');
+        ENTITIES.put("hearts", '\u2665');
+        ENTITIES.put("diams", '\u2666');
+    }
+
+    private static final int CHUNK_SIZE = 8192; // chars
+
+    // Returned by parseTag() if the tag is not fully read yet
+    private static final int INCOMPLETE = -2;
+
+    // Max distance from '&' to ';' of an entity
+    private static final int MAX_ENTITY_DISTANCE = 10;
+
+    /**
+     * Parses HTML directly into Knife spans, in a single pass over the source.
+     * Only tags supported by Knife are taken into account, other tags are skipped.
+     */
+    static void fromHtml(String source, KnifeSpan.Factory factory, KnifeEditable output) {
+        KnifeTagHandler handler = new KnifeTagHandler(output, factory);
+        StringBuilder text = new StringBuilder();
+
+        parse(source, true, text, handler);
+
+        flushText(text, handler);
+        handler.handleEnd();
+    }
+
+    /**
+     * Same as {@link #fromHtml(String, KnifeSpan.Factory, KnifeEditable)}, but reads the source
+     * in chunks and appends text to the output after each chunk, so that the whole source is never
+     * kept in memory. Reader is not closed.
+     */
+    static void fromHtml(Reader source, KnifeSpan.Factory factory, KnifeEditable output)
+            throws IOException {
+        fromHtml(source, factory, output, CHUNK_SIZE);
+    }
+
+    // Chunk size can be changed to check that output does not depend on it
+    static void fromHtml(Reader source, KnifeSpan.Factory factory, KnifeEditable output,
+            int chunkSize) throws IOException {
+        KnifeTagHandler handler = new KnifeTagHandler(output, factory);
+        StringBuilder text = new StringBuilder();
+
+        char[] chunk = new char[chunkSize];
+        String rest = "";
+
+        while (true) {
+            // Reading at least as much as was left unparsed, so that a long unfinished tag
+            // is not parsed over and over again
+            if (chunk.length < rest.length()) {
+                chunk = new char[rest.length()];
+            }
+            int read = read(source, chunk);
+            if (read == -1) {
+                break;
+            }
+
+            String window = rest.concat(new String(chunk, 0, read));
+            rest = window.substring(parse(window, false, text, handler));
+            flushText(text, handler);
+        }
+
+        parse(rest, true, text, handler);
+
+        flushText(text, handler);
+        handler.handleEnd();
+    }
+
+    // Fills the buffer unless the reader ends, returns number of read chars or -1 if none left
+    private static int read(Reader source, char[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            int read = source.read(buffer, count, buffer.length - count);
+            if (read == -1) {
+                return count == 0 ? -1 : count;
+            }
+            count += read;
+        }
+        return count;
+    }
+
+    // Returns position of the first tag or entity which is cut by the source end, if the source
+    // is not the last part, or source length if everything is parsed
+    private static int parse(String source, boolean last, StringBuilder text,
+            KnifeTagHandler handler) {
+        int length = source.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = source.charAt(i);
+
+            if (c == '<') {
+                int tagEnd = parseTag(source, i, last, text, handler);
+                if (tagEnd == INCOMPLETE) {
+                    return i;
+                }
+                if (tagEnd != -1) {
+                    i = tagEnd;
+                    continue;
+                }
+            }
+
+            if (c == '&') {
+                if (!last && source.indexOf(';', i) == -1
+                        && length - i <= MAX_ENTITY_DISTANCE) {
+                    return i;
+                }
+                i = parseEntity(source, i, text);
+            } else {
+                text.append(c);
+                i++;
+            }
+        }
+
+        return length;
+    }
+
+    // Returns position after the tag, -1 if there is no valid tag at given position,
+    // or INCOMPLETE if the tag is cut by the source end and the source is not the last part
+    private static int parseTag(String source, int start, boolean last, StringBuilder text,
+            KnifeTagHandler handler) {
+        int length = source.length();
+        int i = start + 1;
+
+        if (!last && length - i < 3 && "!--".startsWith(source.substring(i))) {
+            return INCOMPLETE; // Might be a comment start
+        }
+
+        if (source.startsWith("!--", i)) {
+            int end = source.indexOf("-->", i + 3);
+            return end != -1 ? end + 3 : last ? length : INCOMPLETE;
+        }
+
+        if (i < length && (source.charAt(i) == '!' || source.charAt(i) == '?')) {
+            int end = source.indexOf('>', i);
+            return end != -1 ? end + 1 : last ? length : INCOMPLETE;
+        }
+
+        boolean closing = i < length && source.charAt(i) == '/';
+        if (closing) {
+            i++;
+        }
+
+        int nameStart = i;
+        while (i < length && isNameChar(source.charAt(i))) {
+            i++;
+        }
+        if (i == length && !last) {
+            return INCOMPLETE;
+        }
+        if (i == nameStart || !Character.isLetter(source.charAt(nameStart))) {
+            return -1;
+        }
+        String tag = source.substring(nameStart, i).toLowerCase(Locale.US);
+
+        // Looking for tag end and reading href attribute, if any
+        String href = null;
+
+        while (i < length && source.charAt(i) != '>') {
+            char c = source.charAt(i);
+
+            if (!isNameChar(c)) {
+                i++;
+                continue;
+            }
+
+            int attrStart = i;
+            while (i < length && isNameChar(source.charAt(i))) {
+                i++;
+            }
+            int attrEnd = i;
+
+            while (i < length && Character.isWhitespace(source.charAt(i))) {
+                i++;
+            }
+            if (i >= length || source.charAt(i) != '=') {
+                continue; // Attribute without value
+            }
+            i++;
+            while (i < length && Character.isWhitespace(source.charAt(i))) {
+                i++;
+            }
+
+            int valueStart;
+            int valueEnd;
+            if (i < length && (source.charAt(i) == '"' || source.charAt(i) == '\'')) {
+                char quote = source.charAt(i);
+                valueStart = i + 1;
+                valueEnd = source.indexOf(quote, valueStart);
+                if (valueEnd == -1) {
+                    valueEnd = length;
+                }
+                i = Math.min(valueEnd + 1, length);
+            } else {
+                valueStart = i;
+                while (i < length && source.charAt(i) != '>'
+                        && !Character.isWhitespace(source.charAt(i))) {
+                    i++;
+                }
+                valueEnd = i;
+            }
+
+            if (!closing && attrEnd - attrStart == 4
+                    && source.regionMatches(true, attrStart, "href", 0, 4)) {
+                href = decodeEntities(source, valueStart, valueEnd);
+            }
+        }
+
+        if (i >= length && !last) {
+            return INCOMPLETE;
+        }
+
+        flushText(text, handler);
+
+        if (closing) {
+            handler.handleEndTag(tag);
+        } else {
+            handler.handleStartTag(tag, href);
+            if (source.charAt(i - 1) == '/' && !tag.equals("br")) {
+                handler.handleEndTag(tag); // Self-closing tag
+            }
+        }
+
+        return Math.min(i + 1, length);
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':';
+    }
+
+    // Appends decoded entity or '&' char, returns position after appended part
+    private static int parseEntity(String source, int start, StringBuilder out) {
+        int end = source.indexOf(';', start);
+
+        if (end != -1 && end - start > 1 && end - start <= MAX_ENTITY_DISTANCE) {
+            if (source.charAt(start + 1) == '#') {
+                int codepoint = -1;
+                try {
+                    if (end - start > 2 && (source.charAt(start + 2) == 'x'
+                            || source.charAt(start + 2) == 'X')) {
+                        codepoint = Integer.parseInt(source.substring(start + 3, end), 16);
+                    } else {
+                        codepoint = Integer.parseInt(source.substring(start + 2, end));
+                    }
+                } catch (NumberFormatException ignored) {
+                }
+
+                if (Character.isValidCodePoint(codepoint)) {
+                    out.appendCodePoint(codepoint);
+                    return end + 1;
+                }
+            } else {
+                Character entity = ENTITIES.get(source.substring(start + 1, end));
+                if (entity != null) {
+                    out.append(entity.charValue());
+                    return end + 1;
+                }
+            }
+        }
+
+        out.append('&');
+        return start + 1;
+    }
+
+    private static String decodeEntities(String source, int start, int end) {
+        StringBuilder out = new StringBuilder(end - start);
+        int i = start;
+        while (i < end) {
+            if (source.charAt(i) == '&') {
+                i = parseEntity(source, i, out);
+            } else {
+                out.append(source.charAt(i));
+                i++;
+            }
+        }
+        return out.toString().trim();
+    }
+
+    private static void flushText(StringBuilder text, KnifeTagHandler handler) {
+        if (text.length() > 0) {
+            handler.handleText(text);
+            text.setLength(0);
+        }
+    }
+
+    static String toHtml(KnifeSpanned text) {
+        return toHtml(text, 0, text.length());
+    }
+
+    static String toHtml(KnifeSpanned text, int start, int end) {
+        StringBuilder out = new StringBuilder();
+        try {
+            toHtml(text, start, end, out);
+        } catch (IOException e) {
+            throw new AssertionError(e); // StringBuilder does not throw IOException
+        }
+        return out.toString();
+    }
+
+    static void toHtml(KnifeSpanned text, Appendable appendable) throws IOException {
+        toHtml(text, 0, text.length(), appendable);
+    }
+
+    /**
+     * Converts given range of the text only. Spans crossing range bounds are cut at the bounds,
+     * so that the output is the same as for a copy of the range.
+     */
+    static void toHtml(KnifeSpanned text, int start, int end, Appendable appendable)
+            throws IOException {
+        if (start < 0 || end > text.length() || start > end) {
+            throw new IndexOutOfBoundsException(
+                    "toHtml " + start + " ... " + end + " of length " + text.length());
+        }
+        KnifeHtmlWriter out = new KnifeHtmlWriter(appendable);
+        withinHtml(out, text, start, end);
+        out.flush();
+    }
+
+    // Writer is not flushed, so that output can be continued
+    static void withinHtml(KnifeHtmlWriter out, KnifeSpanned text, int start, int end)
+            throws IOException {
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = text.nextSpanTransition(i, end, KnifeSpan.Paragraph.class);
+
+            KnifeSpan.Paragraph[] styles = text.getSpans(i, next, KnifeSpan.Paragraph.class);
+            if (styles.length == 2) {
+                if (styles[0] instanceof KnifeSpan.Bullet && styles[1] instanceof KnifeSpan.Quote) {
+                    // Let a <br> follow the bullet or quote end, so next++
+                    withinBulletThenQuote(out, text, i, next++);
+                } else if (styles[0] instanceof KnifeSpan.Quote
+                        && styles[1] instanceof KnifeSpan.Bullet) {
+                    withinQuoteThenBullet(out, text, i, next++);
+                } else {
+                    withinContent(out, text, i, next);
+                }
+            } else if (styles.length == 1) {
+                if (styles[0] instanceof KnifeSpan.Bullet) {
+                    withinBullet(out, text, i, next++);
+                } else if (styles[0] instanceof KnifeSpan.Quote) {
+                    withinQuote(out, text, i, next++);
+                } else {
+                    withinContent(out, text, i, next);
+                }
+            } else {
+                withinContent(out, text, i, next);
+            }
+        }
+    }
+
+    private static void withinBulletThenQuote(KnifeHtmlWriter out, KnifeSpanned text,
+            int start, int end) throws IOException {
+        out.startList();
+        out.append("<li>");
+        withinQuote(out, text, start, end);
+        out.append("</li>");
+        out.endList();
+    }
+
+    private static void withinQuoteThenBullet(KnifeHtmlWriter out, KnifeSpanned text,
+            int start, int end) throws IOException {
+        out.append("<blockquote>");
+        withinBullet(out, text, start, end);
+        out.endQuote();
+    }
+
+    private static void withinBullet(KnifeHtmlWriter out, KnifeSpanned text, int start, int end)
+            throws IOException {
+        out.startList();
+
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = text.nextSpanTransition(i, end, KnifeSpan.Bullet.class);
+            int spansCount = text.getSpans(i, next, KnifeSpan.Bullet.class).length;
+
+            for (int s = 0; s < spansCount; s++) {
+                out.append("<li>");
+            }
+
+            withinContent(out, text, i, next);
+
+            for (int s = 0; s < spansCount; s++) {
+                out.append("</li>");
+            }
+        }
+
+        out.endList();
+    }
+
+    private static void withinQuote(KnifeHtmlWriter out, KnifeSpanned text, int start, int end)
+            throws IOException {
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = text.nextSpanTransition(i, end, KnifeSpan.Quote.class);
+            int spansCount = text.getSpans(i, next, KnifeSpan.Quote.class).length;
+
+            for (int s = 0; s < spansCount; s++) {
+                out.append("<blockquote>");
+            }
+
+            withinContent(out, text, i, next);
+
+            for (int s = 0; s < spansCount; s++) {
+                out.endQuote();
+            }
+        }
+    }
+
+    private static void withinContent(KnifeHtmlWriter out, KnifeSpanned text, int start, int end)
+            throws IOException {
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = i;
+            while (next < end && text.charAt(next) != '\n') {
+                next++;
+            }
+
+            int nl = 0;
+            while (next < end && text.charAt(next) == '\n') {
+                next++;
+                nl++;
+            }
+
+            withinParagraph(out, text, i, next - nl, nl);
+        }
+    }
+
+    // Copy from https://android.googlesource
+    // .com/platform/frameworks/base/+/master/core/java/android/text/Html.java,
+    // remove some tag because we don't need them in Knife.
+    private static void withinParagraph(KnifeHtmlWriter out, KnifeSpanned text,
+            int start, int end, int nl) throws IOException {
+
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = text.nextSpanTransition(i, end, KnifeSpan.class);
+
+            KnifeSpan[] spans = text.getSpans(i, next, KnifeSpan.class);
+            SpanType[] types = new SpanType[spans.length];
+
+            for (int j = 0; j < spans.length; j++) {
+                types[j] = SpanType.ofSpan(spans[j]);
+                if (types[j] != null && !types[j].isParagraph()) {
+                    types[j].writeStart(out, spans[j]);
+                }
+            }
+
+            withinStyle(out, text, i, next);
+
+            for (int j = spans.length - 1; j >= 0; j--) {
+                if (types[j] != null && !types[j].isParagraph()) {
+                    types[j].writeEnd(out);
+                }
+            }
+        }
+
+        for (int i = 0; i < nl; i++) {
+            out.lineBreak();
+        }
+    }
+
+    private static void withinStyle(KnifeHtmlWriter out, CharSequence text, int start, int end)
+            throws IOException {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+
+            if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '>') {
+                out.append("&gt;");
+            } else if (c == '&') {
+                out.append("&amp;");
+            } else if (c >= 0xD800 && c <= 0xDFFF) {
+                if (c < 0xDC00 && i + 1 < end) {
+                    char d = text.charAt(i + 1);
+                    if (d >= 0xDC00 && d <= 0xDFFF) {
+                        i++;
+                        int codepoint = 0x010000 | (int) c - 0xD800 << 10 | (int) d - 0xDC00;
+                        out.appendCharRef(codepoint);
+                    }
+                }
+            } else if (c > 0x7E || c < ' ') {
+                out.appendCharRef(c);
+            } else if (c == ' ') {
+                while (i + 1 < end && text.charAt(i + 1) == ' ') {
+                    out.append("&nbsp;");
+                    i++;
+                }
+
+                out.append(' ');
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+package io.github.mthli.knife;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Immutable copy of a text along with its Knife spans, which can be read from any thread, e.g.
+ * to convert it into HTML in background while the original text is still being edited.
+ * <p>
+ * Creating a snapshot copies all chars and span bounds of the text, in time linear in its
+ * length, as the text is mutable and cannot be shared. Indices needed to query spans
+ * are built on first use by the thread reading the snapshot. Span objects are shared with
+ * the original text, they are expected to be immutable as Knife spans are.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
+public final class KnifeSnapshot implements KnifeSpanned {
+
+    private final String text;
+
+    // Spans in the same order as returned by the original text
+    private final Object[] spans;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] flags;
+
+    // Built on first query, building it twice from concurrent threads is harmless
+    private volatile Index index;
+
+    private KnifeSnapshot(String text, Object[] spans, int[] starts, int[] ends, int[] flags) {
+        this.text = text;
+        this.spans = spans;
+        this.starts = starts;
+        this.ends = ends;
+        this.flags = flags;
+    }
+
+    /**
+     * Copies given text and spans of formats known to {@link SpanType}, other spans are skipped.
+     * Should be called on the thread owning the text.
+     */
+    public static KnifeSnapshot of(KnifeSpanned text) {
+        final KnifeSpan[] found = text.getSpans(0, text.length(), KnifeSpan.class);
+        final Object[] spans = new Object[found.length];
+        final int[] starts = new int[found.length];
+        final int[] ends = new int[found.length];
+        final int[] flags = new int[found.length];
+        int count = 0;
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < found.length; i++) {
+            if (SpanType.ofSpan(found[i]) != null) {
+                spans[count] = found[i];
+                starts[count] = text.getSpanStart(found[i]);
+                ends[count] = text.getSpanEnd(found[i]);
+                flags[count] = text.getSpanFlags(found[i]);
+                count++;
+            }
+        }
+
+        return new KnifeSnapshot(text.toString(), Arrays.copyOf(spans, count),
+                Arrays.copyOf(starts, count), Arrays.copyOf(ends, count),
+                Arrays.copyOf(flags, count));
+    }
+
+    public String getHtml() {
+        return KnifeParser.toHtml(this);
+    }
+
+    /**
+     * Writes same HTML as {@link #getHtml()} directly into given appendable.
+     */
+    public void writeHtml(Appendable out) throws IOException {
+        KnifeParser.toHtml(this, out);
+    }
+
+    /**
+     * Returns HTML of given range only, see {@link KnifeDocument#getHtml(int, int)}.
+     */
+    public String getHtml(int start, int end) {
+        return KnifeParser.toHtml(this, start, end);
+    }
+
+    /**
+     * Writes same HTML as {@link #getHtml(int, int)} directly into given appendable.
+     */
+    public void writeHtml(Appendable out, int start, int end) throws IOException {
+        KnifeParser.toHtml(this, start, end, out);
+    }
+
+    // Text ========================================================================================
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    /**
+     * Returns editable copy of the range, along with its spans.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new KnifeSpannableBuilder(this, start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    // Spans =======================================================================================
+
+    @Override
+    public <T> T[] getSpans(int start, int end, Class<T> type) {
+        final Slots found = new Slots();
+
+        if (isIndexed(type)) {
+            final TypeIndex[] indices = getIndex().types;
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] != null && indices[i].isOf(type)) {
+                    indices[i].collect(start, end, found);
+                }
+            }
+            // Spans are returned in the original order
+            Arrays.sort(found.items, 0, found.count);
+        } else {
+            for (int i = 0; i < spans.length; i++) {
+                if (type.isInstance(spans[i]) && isSpanInRange(i, start, end)) {
+                    found.add(i);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        final T[] result = (T[]) Array.newInstance(type, found.count);
+        for (int i = 0; i < found.count; i++) {
+            result[i] = type.cast(spans[found.items[i]]);
+        }
+        return result;
+    }
+
+    private boolean isSpanInRange(int slot, int start, int end) {
+        final int spanStart = starts[slot];
+        final int spanEnd = ends[slot];
+        if (spanStart > end || spanEnd < start) {
+            return false;
+        }
+        // Non-empty spans only touching non-empty range are not included
+        return spanStart == spanEnd || start == end || (spanStart != end && spanEnd != start);
+    }
+
+    @Override
+    public int getSpanStart(Object span) {
+        final Integer slot = getIndex().slots.get(span);
+        return slot == null ? -1 : starts[slot];
+    }
+
+    @Override
+    public int getSpanEnd(Object span) {
+        final Integer slot = getIndex().slots.get(span);
+        return slot == null ? -1 : ends[slot];
+    }
+
+    @Override
+    public int getSpanFlags(Object span) {
+        final Integer slot = getIndex().slots.get(span);
+        return slot == null ? 0 : flags[slot];
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class type) {
+        if (type == null) {
+            type = Object.class;
+        }
+
+        if (!isIndexed(type)) {
+            return nextSpanTransitionSlow(start, limit, type);
+        }
+
+        final TypeIndex[] indices = getIndex().types;
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] != null && indices[i].isOf(type)) {
+                limit = indices[i].nextSpanTransition(start, limit);
+            }
+        }
+        return limit;
+    }
+
+    // Queries by formats and their base interfaces are answered with type indices,
+    // other types, e.g. span classes, are checked span by span
+    private static boolean isIndexed(Class type) {
+        if (type == Object.class || type == KnifeSpan.class || type == KnifeSpan.Paragraph.class) {
+            return true;
+        }
+        final SpanType spanType = SpanType.of(type);
+        return spanType != null && spanType.getFormat() == type;
+    }
+
+    private int nextSpanTransitionSlow(int start, int limit, Class type) {
+        for (int i = 0; i < spans.length; i++) {
+            if (type.isInstance(spans[i])) {
+                if (starts[i] > start && starts[i] < limit) {
+                    limit = starts[i];
+                }
+                if (ends[i] > start && ends[i] < limit) {
+                    limit = ends[i];
+                }
+            }
+        }
+        return limit;
+    }
+
+    private Index getIndex() {
+        Index result = index;
+        if (result == null) {
+            result = new Index();
+            index = result;
+        }
+        return result;
+    }
+
+    private class Index {
+        final Map<Object, Integer> slots = new IdentityHashMap<>(spans.length * 2);
+        // Indices of spans by their type ids, null for types without spans
+        final TypeIndex[] types;
+
+        Index() {
+            for (int i = 0; i < spans.length; i++) {
+                slots.put(spans[i], i);
+            }
+
+            final SpanType[] all = SpanType.all();
+            final int[] typeIds = new int[spans.length];
+            final int[] counts = new int[all.length];
+            for (int i = 0; i < spans.length; i++) {
+                typeIds[i] = SpanType.ofSpan(spans[i]).getId();
+                counts[typeIds[i]]++;
+            }
+
+            types = new TypeIndex[all.length];
+            for (int t = 0; t < all.length; t++) {
+                if (counts[t] > 0) {
+                    types[t] = new TypeIndex(all[t].getFormat(), typeIds, t, counts[t]);
+                }
+            }
+        }
+    }
+
+
+    // Spans of one type sorted by start position, with max end positions kept in a segment tree
+    private class TypeIndex {
+        final Class format;
+        final int[] order; // Slots sorted by span start
+        final int[] sortedStarts;
+        final int[] sortedEnds;
+        final int[] maxEnds;
+
+        TypeIndex(Class format, int[] typeIds, int typeId, int count) {
+            this.format = format;
+
+            final long[] sorted = new long[count];
+            int k = 0;
+            for (int i = 0; i < typeIds.length; i++) {
+                if (typeIds[i] == typeId) {
+                    sorted[k++] = (long) starts[i] << 32 | i;
+                }
+            }
+            Arrays.sort(sorted);
+
+            order = new int[count];
+            sortedStarts = new int[count];
+            sortedEnds = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = (int) sorted[i];
+                sortedStarts[i] = starts[order[i]];
+                sortedEnds[i] = ends[order[i]];
+            }
+            Arrays.sort(sortedEnds);
+
+            maxEnds = new int[4 * count];
+            buildTree(1, 0, count - 1);
+        }
+
+        // Whether spans of this format are of the given type
+        @SuppressWarnings("unchecked")
+        boolean isOf(Class type) {
+            return type.isAssignableFrom(format);
+        }
+
+        private int buildTree(int node, int from, int to) {
+            if (from == to) {
+                maxEnds[node] = ends[order[from]];
+            } else {
+                final int mid = (from + to) >>> 1;
+                maxEnds[node] = Math.max(buildTree(2 * node, from, mid),
+                        buildTree(2 * node + 1, mid + 1, to));
+            }
+            return maxEnds[node];
+        }
+
+        // Adds slots of spans intersecting the range to the found ones
+        void collect(int start, int end, Slots found) {
+            // Only spans starting not after query end can intersect it
+            final int last = upperBound(sortedStarts, end) - 1;
+            if (last >= 0) {
+                collect(1, 0, order.length - 1, last, start, end, found);
+            }
+        }
+
+        private void collect(int node, int from, int to, int last, int start, int end,
+                Slots found) {
+            if (from > last || maxEnds[node] < start) {
+                return;
+            }
+            if (from == to) {
+                if (isSpanInRange(order[from], start, end)) {
+                    found.add(order[from]);
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            collect(2 * node, from, mid, last, start, end, found);
+            collect(2 * node + 1, mid + 1, to, last, start, end, found);
+        }
+
+        int nextSpanTransition(int start, int limit) {
+            final int nextStart = upperBound(sortedStarts, start);
+            if (nextStart < sortedStarts.length && sortedStarts[nextStart] < limit) {
+                limit = sortedStarts[nextStart];
+            }
+            final int nextEnd = upperBound(sortedEnds, start);
+            if (nextEnd < sortedEnds.length && sortedEnds[nextEnd] < limit) {
+                limit = sortedEnds[nextEnd];
+            }
+            return limit;
+        }
+    }
+
+    private static class Slots {
+        int[] items = new int[8];
+        int count;
+
+        void add(int slot) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, count * 2);
+            }
+            items[count++] = slot;
+        }
+    }
+
+    // Returns index of the first value greater than given one
+    private static int upperBound(int[] sorted, int value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sorted[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+}
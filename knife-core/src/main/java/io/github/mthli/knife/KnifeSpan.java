@@ -0,0 +1,39 @@
+package io.github.mthli.knife;
+
+/**
+ * Base interface of all spans Knife works with. Formats are identified by the nested
+ * interfaces, so that platform specific spans can be used by the same formatting logic.
+ */
+public interface KnifeSpan {
+
+    interface Bold extends KnifeSpan {}
+
+    interface Italic extends KnifeSpan {}
+
+    interface Underline extends KnifeSpan {}
+
+    interface Strike extends KnifeSpan {}
+
+    interface Link extends KnifeSpan {
+        String getURL();
+    }
+
+    /**
+     * Spans which are applied to whole lines.
+     */
+    interface Paragraph extends KnifeSpan {}
+
+    interface Bullet extends Paragraph {}
+
+    interface Quote extends Paragraph {}
+
+
+    interface Factory {
+        /**
+         * Creates span of given format, url is only provided for {@link Link} format.
+         * Document's factory is only asked for built-in formats, see {@link SpanType}.
+         */
+        Object createSpan(Class spanClass, String url);
+    }
+
+}
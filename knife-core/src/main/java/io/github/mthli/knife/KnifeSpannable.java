@@ -0,0 +1,9 @@
+package io.github.mthli.knife;
+
+public interface KnifeSpannable extends KnifeSpanned {
+
+    void setSpan(Object span, int start, int end, int flags);
+
+    void removeSpan(Object span);
+
+}
@@ -0,0 +1,545 @@
+package io.github.mthli.knife;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Plain Java editable text with spans. Spans bounds are updated on text changes the same way
+ * as in {@code android.text.SpannableStringBuilder}.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
+public class KnifeSpannableBuilder implements KnifeEditable, KnifeLineIndex.Provider {
+
+    private static final int START_POINT = 0x20;
+    private static final int END_POINT = 0x02;
+
+    // Number of queries of the same type without changes in between after which it is indexed
+    private static final int INDEX_THRESHOLD = 8;
+
+    private final StringBuilder text;
+
+    // Spans in the order they were added, removed spans leave null slots until compacted
+    private Object[] spans = new Object[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int[] flags = new int[16];
+    private int slots;
+    private int removed;
+    private final Map<Object, Integer> indices = new IdentityHashMap<>();
+
+    // Slots of spans which may end at text end, so that appending text only checks them.
+    // May contain removed or moved spans and duplicates, tailKnown is false if not collected yet.
+    private int[] tail = new int[16];
+    private int tailSize;
+    private boolean tailKnown;
+
+    // Indices of spans by type, dropped on any change
+    private final Map<Class, TypeIndex> typeIndices = new HashMap<>();
+
+    // Created on first use and updated on every change afterwards
+    private KnifeLineIndex lineIndex;
+
+    public KnifeSpannableBuilder() {
+        text = new StringBuilder();
+    }
+
+    public KnifeSpannableBuilder(CharSequence source) {
+        this(source, 0, source.length());
+    }
+
+    public KnifeSpannableBuilder(CharSequence source, int start, int end) {
+        text = new StringBuilder(end - start);
+        text.append(source, start, end);
+
+        if (source instanceof KnifeSpanned) {
+            copySpans((KnifeSpanned) source, start, end, 0);
+        }
+    }
+
+    // Text ========================================================================================
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new KnifeSpannableBuilder(this, start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    @Override
+    public KnifeLineIndex getLineIndex() {
+        if (lineIndex == null) {
+            lineIndex = new KnifeLineIndex(text);
+        }
+        return lineIndex;
+    }
+
+    @Override
+    public KnifeSpannableBuilder replace(int start, int end, CharSequence source) {
+        if (start < 0 || end > text.length() || start > end) {
+            throw new IndexOutOfBoundsException(
+                    "replace " + start + " ... " + end + " of length " + text.length());
+        }
+
+        final int length = text.length();
+        final int count = source.length();
+        final boolean textRemoved = end > start;
+        text.replace(start, end, source.toString());
+        typeIndices.clear();
+
+        if (lineIndex != null) {
+            lineIndex.replace(start, end - start, source, 0, count);
+        }
+
+        if (start == length) {
+            moveTailSpans(length, count);
+        } else {
+            moveSpans(start, end, count, textRemoved);
+        }
+
+        if (source instanceof KnifeSpanned) {
+            copySpans((KnifeSpanned) source, 0, count, start);
+        }
+
+        compactIfNeeded();
+        return this;
+    }
+
+    private void moveSpans(int start, int end, int count, boolean textRemoved) {
+        final int length = text.length();
+        tailSize = 0;
+        tailKnown = true;
+
+        for (int i = 0; i < slots; i++) {
+            if (spans[i] == null) {
+                continue;
+            }
+
+            final boolean wasEmpty = starts[i] == ends[i];
+            starts[i] = movePosition(starts[i], start, end, count,
+                    (flags[i] & START_POINT) != 0);
+            ends[i] = movePosition(ends[i], start, end, count,
+                    (flags[i] & END_POINT) != 0);
+            if (starts[i] > ends[i]) {
+                starts[i] = ends[i];
+            }
+
+            // Same as on Android, exclusive spans which became empty are removed
+            if (textRemoved && !wasEmpty && starts[i] == ends[i]
+                    && (flags[i] & SPAN_POINT_MARK_MASK) == SPAN_EXCLUSIVE_EXCLUSIVE) {
+                removeAt(i);
+            } else if (ends[i] == length) {
+                addTail(i);
+            }
+        }
+    }
+
+    // Appending text only affects spans ending at the previous text end
+    private void moveTailSpans(int length, int count) {
+        if (count == 0) {
+            return;
+        }
+
+        if (!tailKnown) {
+            tailSize = 0;
+            for (int i = 0; i < slots; i++) {
+                if (spans[i] != null && ends[i] == length) {
+                    addTail(i);
+                }
+            }
+            tailKnown = true;
+        }
+
+        // Only spans with point end are still at text end afterwards
+        int kept = 0;
+        for (int t = 0; t < tailSize; t++) {
+            final int i = tail[t];
+            if (spans[i] == null || ends[i] != length) {
+                continue; // Removed, moved or already seen
+            }
+            if (starts[i] == length && (flags[i] & START_POINT) != 0) {
+                starts[i] += count;
+            }
+            if ((flags[i] & END_POINT) != 0) {
+                ends[i] += count;
+                tail[kept++] = i;
+            }
+            if (starts[i] > ends[i]) {
+                starts[i] = ends[i];
+            }
+        }
+        tailSize = kept;
+    }
+
+    private void addTail(int slot) {
+        if (tailSize == tail.length) {
+            tail = Arrays.copyOf(tail, tailSize * 2);
+        }
+        tail[tailSize++] = slot;
+    }
+
+    @Override
+    public KnifeSpannableBuilder insert(int where, CharSequence source) {
+        return replace(where, where, source);
+    }
+
+    @Override
+    public KnifeSpannableBuilder delete(int start, int end) {
+        return replace(start, end, "");
+    }
+
+    @Override
+    public KnifeSpannableBuilder append(CharSequence source) {
+        return replace(text.length(), text.length(), source);
+    }
+
+    @Override
+    public KnifeSpannableBuilder append(char c) {
+        final int length = text.length();
+        text.append(c);
+        typeIndices.clear();
+
+        if (lineIndex != null) {
+            lineIndex.replace(length, 0, text, length, length + 1);
+        }
+
+        moveTailSpans(length, 1);
+        return this;
+    }
+
+    private static int movePosition(int position, int start, int end, int count, boolean point) {
+        if (position < start) {
+            return position;
+        } else if (position > end) {
+            return position + count - (end - start);
+        } else if (position == end && end > start) {
+            return start + count;
+        } else {
+            // At insertion point or inside removed range
+            return point ? start + count : start;
+        }
+    }
+
+    private void copySpans(KnifeSpanned source, int start, int end, int offset) {
+        final Object[] sourceSpans = source.getSpans(start, end, Object.class);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < sourceSpans.length; i++) {
+            final Object span = sourceSpans[i];
+            final int spanStart = Math.max(source.getSpanStart(span), start) - start + offset;
+            final int spanEnd = Math.min(source.getSpanEnd(span), end) - start + offset;
+            setSpan(span, spanStart, spanEnd, source.getSpanFlags(span));
+        }
+    }
+
+    // Spans =======================================================================================
+
+    @Override
+    public void setSpan(Object span, int start, int end, int spanFlags) {
+        if (start < 0 || end > text.length() || start > end) {
+            throw new IndexOutOfBoundsException(
+                    "setSpan " + start + " ... " + end + " of length " + text.length());
+        }
+
+        typeIndices.clear();
+
+        final Integer index = indices.get(span);
+        if (index != null) {
+            starts[index] = start;
+            ends[index] = end;
+            flags[index] = spanFlags;
+            if (tailKnown && end == text.length()) {
+                addTail(index);
+            }
+            return;
+        }
+
+        if (slots == spans.length) {
+            final int size = slots * 2;
+            spans = Arrays.copyOf(spans, size);
+            starts = Arrays.copyOf(starts, size);
+            ends = Arrays.copyOf(ends, size);
+            flags = Arrays.copyOf(flags, size);
+        }
+
+        spans[slots] = span;
+        starts[slots] = start;
+        ends[slots] = end;
+        flags[slots] = spanFlags;
+        indices.put(span, slots);
+        if (tailKnown && end == text.length()) {
+            addTail(slots);
+        }
+        slots++;
+    }
+
+    @Override
+    public void removeSpan(Object span) {
+        final Integer index = indices.get(span);
+        if (index != null) {
+            removeAt(index);
+            compactIfNeeded();
+        }
+    }
+
+    private void removeAt(int index) {
+        typeIndices.clear();
+        indices.remove(spans[index]);
+        spans[index] = null;
+        removed++;
+    }
+
+    // Dropping empty slots once they take half of the arrays
+    private void compactIfNeeded() {
+        if (removed == 0 || removed < slots / 2) {
+            return;
+        }
+
+        typeIndices.clear();
+        tailKnown = false;
+
+        int k = 0;
+        for (int i = 0; i < slots; i++) {
+            if (spans[i] != null) {
+                spans[k] = spans[i];
+                starts[k] = starts[i];
+                ends[k] = ends[i];
+                flags[k] = flags[i];
+                indices.put(spans[k], k);
+                k++;
+            }
+        }
+        Arrays.fill(spans, k, slots, null);
+        slots = k;
+        removed = 0;
+    }
+
+    @Override
+    public <T> T[] getSpans(int start, int end, Class<T> type) {
+        final TypeIndex index = getTypeIndex(type);
+        if (index != null) {
+            return index.getSpans(start, end, type);
+        }
+
+        int count = 0;
+        for (int i = 0; i < slots; i++) {
+            if (isSpanInRange(i, start, end, type)) {
+                count++;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        final T[] result = (T[]) Array.newInstance(type, count);
+        int k = 0;
+        for (int i = 0; i < slots && k < count; i++) {
+            if (isSpanInRange(i, start, end, type)) {
+                result[k++] = type.cast(spans[i]);
+            }
+        }
+        return result;
+    }
+
+    private boolean isSpanInRange(int index, int start, int end, Class type) {
+        final Object span = spans[index];
+        if (span == null || !type.isInstance(span)) {
+            return false;
+        }
+
+        final int spanStart = starts[index];
+        final int spanEnd = ends[index];
+        if (spanStart > end || spanEnd < start) {
+            return false;
+        }
+        // Non-empty spans only touching non-empty range are not included
+        return spanStart == spanEnd || start == end || (spanStart != end && spanEnd != start);
+    }
+
+    @Override
+    public int getSpanStart(Object span) {
+        final Integer index = indices.get(span);
+        return index == null ? -1 : starts[index];
+    }
+
+    @Override
+    public int getSpanEnd(Object span) {
+        final Integer index = indices.get(span);
+        return index == null ? -1 : ends[index];
+    }
+
+    @Override
+    public int getSpanFlags(Object span) {
+        final Integer index = indices.get(span);
+        return index == null ? 0 : flags[index];
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class type) {
+        if (type == null) {
+            type = Object.class;
+        }
+
+        final TypeIndex index = getTypeIndex(type);
+        if (index != null) {
+            return index.nextSpanTransition(start, limit);
+        }
+
+        for (int i = 0; i < slots; i++) {
+            if (spans[i] != null && type.isInstance(spans[i])) {
+                if (starts[i] > start && starts[i] < limit) {
+                    limit = starts[i];
+                }
+                if (ends[i] > start && ends[i] < limit) {
+                    limit = ends[i];
+                }
+            }
+        }
+        return limit;
+    }
+
+    // Index is only built for types queried often enough, e.g. while serializing
+    private TypeIndex getTypeIndex(Class type) {
+        TypeIndex index = typeIndices.get(type);
+        if (index == null) {
+            index = new TypeIndex();
+            typeIndices.put(type, index);
+        }
+        if (index.order == null && ++index.queries >= INDEX_THRESHOLD) {
+            index.build(type);
+        }
+        return index.order == null ? null : index;
+    }
+
+
+    // Spans of one type sorted by start position, with max end positions kept in a segment tree
+    private class TypeIndex {
+        int queries;
+
+        int[] order; // Slots sorted by span start
+        int[] sortedStarts;
+        int[] sortedEnds;
+        int[] maxEnds;
+
+        void build(Class type) {
+            int count = 0;
+            final long[] sorted = new long[slots - removed];
+            for (int i = 0; i < slots; i++) {
+                if (spans[i] != null && type.isInstance(spans[i])) {
+                    sorted[count++] = (long) starts[i] << 32 | i;
+                }
+            }
+            Arrays.sort(sorted, 0, count);
+
+            order = new int[count];
+            sortedStarts = new int[count];
+            sortedEnds = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = (int) sorted[i];
+                sortedStarts[i] = starts[order[i]];
+                sortedEnds[i] = ends[order[i]];
+            }
+            Arrays.sort(sortedEnds);
+
+            maxEnds = new int[Math.max(1, 4 * count)];
+            if (count > 0) {
+                buildTree(1, 0, count - 1);
+            }
+        }
+
+        private int buildTree(int node, int from, int to) {
+            if (from == to) {
+                maxEnds[node] = ends[order[from]];
+            } else {
+                final int mid = (from + to) >>> 1;
+                maxEnds[node] = Math.max(buildTree(2 * node, from, mid),
+                        buildTree(2 * node + 1, mid + 1, to));
+            }
+            return maxEnds[node];
+        }
+
+        <T> T[] getSpans(int start, int end, Class<T> type) {
+            // Only spans starting not after query end can intersect it
+            final int last = upperBound(sortedStarts, end) - 1;
+
+            int[] found = new int[8];
+            int count = 0;
+            if (last >= 0) {
+                found = collect(1, 0, order.length - 1, last, start, end, found);
+                count = found[0];
+                found = Arrays.copyOfRange(found, 1, count + 1);
+            }
+
+            // Spans are returned in the order they were added
+            Arrays.sort(found, 0, count);
+
+            @SuppressWarnings("unchecked")
+            final T[] result = (T[]) Array.newInstance(type, count);
+            for (int i = 0; i < count; i++) {
+                result[i] = type.cast(spans[found[i]]);
+            }
+            return result;
+        }
+
+        // Collects slots of spans from [from, min(to, last)] intersecting the range,
+        // found[0] keeps the number of collected slots
+        private int[] collect(int node, int from, int to, int last, int start, int end,
+                int[] found) {
+            if (from > last || maxEnds[node] < start) {
+                return found;
+            }
+            if (from == to) {
+                if (isSpanInRange(order[from], start, end, Object.class)) {
+                    if (found[0] + 1 == found.length) {
+                        found = Arrays.copyOf(found, found.length * 2);
+                    }
+                    found[++found[0]] = order[from];
+                }
+                return found;
+            }
+            final int mid = (from + to) >>> 1;
+            found = collect(2 * node, from, mid, last, start, end, found);
+            return collect(2 * node + 1, mid + 1, to, last, start, end, found);
+        }
+
+        int nextSpanTransition(int start, int limit) {
+            final int nextStart = upperBound(sortedStarts, start);
+            if (nextStart < sortedStarts.length && sortedStarts[nextStart] < limit) {
+                limit = sortedStarts[nextStart];
+            }
+            final int nextEnd = upperBound(sortedEnds, start);
+            if (nextEnd < sortedEnds.length && sortedEnds[nextEnd] < limit) {
+                limit = sortedEnds[nextEnd];
+            }
+            return limit;
+        }
+    }
+
+    // Returns index of the first value greater than given one
+    private static int upperBound(int[] sorted, int value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sorted[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+}
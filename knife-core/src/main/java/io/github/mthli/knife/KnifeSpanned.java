@@ -0,0 +1,35 @@
+package io.github.mthli.knife;
+
+/**
+ * Text with spans, same as {@code android.text.Spanned} but without platform dependencies.
+ * Flags have same values as Android ones.
+ */
+public interface KnifeSpanned extends CharSequence {
+
+    int SPAN_POINT_MARK_MASK = 0x33;
+
+    int SPAN_MARK_MARK = 0x11;
+    int SPAN_MARK_POINT = 0x12;
+    int SPAN_POINT_MARK = 0x21;
+    int SPAN_POINT_POINT = 0x22;
+
+    int SPAN_INCLUSIVE_EXCLUSIVE = SPAN_MARK_MARK;
+    int SPAN_INCLUSIVE_INCLUSIVE = SPAN_MARK_POINT;
+    int SPAN_EXCLUSIVE_EXCLUSIVE = SPAN_POINT_MARK;
+    int SPAN_EXCLUSIVE_INCLUSIVE = SPAN_POINT_POINT;
+
+    /**
+     * Returns spans of given type intersecting the range, in the order they were added.
+     * Spans which only touch non-empty range at its bounds are not returned.
+     */
+    <T> T[] getSpans(int start, int end, Class<T> type);
+
+    int getSpanStart(Object span);
+
+    int getSpanEnd(Object span);
+
+    int getSpanFlags(Object span);
+
+    int nextSpanTransition(int start, int limit, Class type);
+
+}
@@ -0,0 +1,61 @@
+package io.github.mthli.knife;
+
+/**
+ * Plain spans used by {@link KnifeDocument} when no platform specific factory is provided.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
+public final class KnifeSpans {
+
+    public static final KnifeSpan.Factory FACTORY = new KnifeSpan.Factory() {
+        @Override
+        public Object createSpan(Class spanClass, String url) {
+            if (spanClass == KnifeDocument.BOLD) {
+                return new BoldSpan();
+            } else if (spanClass == KnifeDocument.ITALIC) {
+                return new ItalicSpan();
+            } else if (spanClass == KnifeDocument.UNDERLINE) {
+                return new UnderlineSpan();
+            } else if (spanClass == KnifeDocument.STRIKE) {
+                return new StrikeSpan();
+            } else if (spanClass == KnifeDocument.BULLET) {
+                return new BulletSpan();
+            } else if (spanClass == KnifeDocument.QUOTE) {
+                return new QuoteSpan();
+            } else if (spanClass == KnifeDocument.URL) {
+                return new LinkSpan(url);
+            } else {
+                throw new IllegalArgumentException(
+                        "Unknown span type: " + spanClass.getSimpleName());
+            }
+        }
+    };
+
+    private KnifeSpans() {}
+
+
+    public static class BoldSpan implements KnifeSpan.Bold {}
+
+    public static class ItalicSpan implements KnifeSpan.Italic {}
+
+    public static class UnderlineSpan implements KnifeSpan.Underline {}
+
+    public static class StrikeSpan implements KnifeSpan.Strike {}
+
+    public static class BulletSpan implements KnifeSpan.Bullet {}
+
+    public static class QuoteSpan implements KnifeSpan.Quote {}
+
+    public static class LinkSpan implements KnifeSpan.Link {
+        private final String url;
+
+        public LinkSpan(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public String getURL() {
+            return url;
+        }
+    }
+
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ * Copyright (C) 2013-2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (C) 2013-2015 Juha Kuitunen
+ * Copyright (C) 2013 Mohammed Lakkadshaw
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Converts tags and text reported by {@link KnifeParser} into text with Knife spans.
+ */
+class KnifeTagHandler {
+
+    private final KnifeEditable output;
+    private final KnifeSpan.Factory factory;
+
+    // Tag kinds are ids of span types
+    private final SpanType[] types = SpanType.all();
+
+    // Start positions of currently open tags, per tag kind
+    private final Positions[] openTags = new Positions[types.length];
+    private final List<String> openLinks = new ArrayList<>();
+
+    // Character spans added so far, per tag kind. Spans are added at text end, so they are
+    // ordered by end position and the ones to be merged with a new span are always the last.
+    // Spans are made inclusive only when parsing is finished, see handleEnd().
+    private final Positions[] spanBounds = new Positions[types.length];
+    private final List<List<Object>> spans = new ArrayList<>();
+
+    // Start positions of lines which already have a paragraph span, per tag kind
+    private final BitSet[] paragraphLines = new BitSet[types.length];
+
+    KnifeTagHandler(KnifeEditable output, KnifeSpan.Factory factory) {
+        this.output = output;
+        this.factory = factory;
+
+        for (int kind = 0; kind < types.length; kind++) {
+            openTags[kind] = new Positions();
+            if (types[kind].isParagraph()) {
+                paragraphLines[kind] = new BitSet();
+                spans.add(null);
+            } else {
+                spanBounds[kind] = new Positions();
+                spans.add(new ArrayList<>());
+            }
+        }
+    }
+
+    void handleStartTag(String tag, String href) {
+        if (tag.equals("br")) {
+            output.append('\n');
+        } else if (tag.equals("p") || tag.equals("div") || isHeading(tag)) {
+            handleP();
+        } else if (tag.equals("ul") || tag.equals("ol")) {
+            handleLineBreak();
+        } else {
+            final int kind = getKind(tag);
+            if (kind == -1) {
+                return;
+            }
+            if (types[kind].isParagraph()) {
+                handleLineBreak();
+            }
+            if (types[kind] == SpanType.URL) {
+                openLinks.add(href);
+            }
+            openTags[kind].push(output.length(), output.length());
+        }
+    }
+
+    void handleEndTag(String tag) {
+        if (tag.equals("p") || tag.equals("div") || isHeading(tag)) {
+            handleP();
+        } else if (tag.equals("ul") || tag.equals("ol")) {
+            handleLineBreak();
+        } else {
+            final int kind = getKind(tag);
+            if (kind == -1) {
+                return;
+            }
+            if (types[kind].isParagraph()) {
+                handleLineBreak();
+            }
+            end(kind);
+        }
+    }
+
+    // Text should already have entities decoded
+    void handleText(CharSequence text) {
+        final StringBuilder sb = new StringBuilder(text.length());
+
+        // Collapsing white spaces the same way as Html.fromHtml() does
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                char pred;
+                int len = sb.length();
+
+                if (len == 0) {
+                    len = output.length();
+                    pred = len == 0 ? '\n' : output.charAt(len - 1);
+                } else {
+                    pred = sb.charAt(len - 1);
+                }
+
+                if (pred != ' ' && pred != '\n') {
+                    sb.append(' ');
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+
+        output.append(sb);
+    }
+
+    // Closes all tags left open
+    void handleEnd() {
+        boolean paragraphsOpen = false;
+        for (int kind = 0; kind < types.length; kind++) {
+            if (types[kind].isParagraph()) {
+                paragraphsOpen |= openTags[kind].size > 0;
+            } else {
+                while (openTags[kind].size > 0) {
+                    end(kind);
+                }
+            }
+        }
+
+        if (paragraphsOpen) {
+            handleLineBreak();
+        }
+        for (int kind = 0; kind < types.length; kind++) {
+            while (types[kind].isParagraph() && openTags[kind].size > 0) {
+                end(kind);
+            }
+        }
+
+        for (int kind = 0; kind < types.length; kind++) {
+            if (types[kind].isParagraph()) {
+                continue;
+            }
+            final List<Object> list = spans.get(kind);
+            final Positions bounds = spanBounds[kind];
+            for (int i = 0; i < bounds.size; i++) {
+                output.setSpan(list.get(i), bounds.starts[i], bounds.ends[i],
+                        KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+            }
+        }
+    }
+
+    private int getKind(String tag) {
+        final SpanType type = SpanType.ofTag(tag);
+        // Types registered after parsing was started are ignored
+        return type == null || type.getId() >= types.length ? -1 : type.getId();
+    }
+
+    private static boolean isHeading(String tag) {
+        return tag.length() == 2 && tag.charAt(0) == 'h'
+                && tag.charAt(1) >= '1' && tag.charAt(1) <= '6';
+    }
+
+    private void handleP() {
+        int len = output.length();
+
+        if (len >= 1 && output.charAt(len - 1) == '\n') {
+            if (len >= 2 && output.charAt(len - 2) == '\n') {
+                return;
+            }
+
+            output.append('\n');
+        } else if (len != 0) {
+            output.append("\n\n");
+        }
+    }
+
+    private void handleLineBreak() {
+        if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
+            output.append('\n');
+        }
+    }
+
+    private void end(int kind) {
+        final Positions open = openTags[kind];
+        if (open.size == 0) {
+            return; // Closing tag without opening one
+        }
+
+        final int start = open.starts[open.size - 1];
+        final int end = output.length();
+        open.pop();
+
+        final boolean link = types[kind] == SpanType.URL;
+        String href = null;
+        if (link) {
+            href = openLinks.remove(openLinks.size() - 1);
+        }
+
+        if (start == end) {
+            return;
+        }
+
+        if (link) {
+            if (href != null && href.length() > 0) {
+                setSpan(kind, href, start, end);
+            }
+        } else if (types[kind].isParagraph()) {
+            setParagraph(kind, start, end);
+        } else {
+            setSpan(kind, null, start, end);
+        }
+    }
+
+    // Same as KnifeDocument's setSpan(), taking into account that spans are only added at text end
+    private void setSpan(int kind, String url, int start, int end) {
+        final Positions bounds = spanBounds[kind];
+        final List<Object> list = spans.get(kind);
+        final boolean link = types[kind] == SpanType.URL;
+
+        // Links are not merged, link closed last replaces links within its range, same as
+        // setSpan() of a link does, so an outer link replaces the nested ones.
+        // Other spans are merged with nested spans and with the span ending at start position.
+        while (bounds.size > 0) {
+            final int last = bounds.size - 1;
+            if (bounds.ends[last] < start || (link && bounds.ends[last] == start)) {
+                break;
+            }
+            if (!link) {
+                start = Math.min(start, bounds.starts[last]);
+            }
+            output.removeSpan(list.remove(last));
+            bounds.pop();
+        }
+
+        final Object span = createSpan(kind, url);
+        output.setSpan(span, start, end, KnifeSpanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        list.add(span);
+        bounds.push(start, end);
+    }
+
+    // Same as KnifeDocument's setParagraph()
+    private void setParagraph(int kind, int start, int end) {
+        start = KnifeDocument.findLineStart(output, start);
+        end = KnifeDocument.findLineEnd(output, end);
+
+        final BitSet lines = paragraphLines[kind];
+        int lineStart = start;
+
+        while (lineStart < end) {
+            int lineEnd = KnifeDocument.findLineEnd(output, lineStart);
+            if (lineStart != lineEnd && !lines.get(lineStart)) {
+                output.setSpan(createSpan(kind, null),
+                        lineStart, lineEnd, KnifeSpanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                lines.set(lineStart);
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    // Same as KnifeDocument's createSpan()
+    private Object createSpan(int kind, String url) {
+        final SpanType type = types[kind];
+        return type.isCustom() ? type.createSpan(url) : factory.createSpan(type.getFormat(), url);
+    }
+
+
+    // Growable stack of start and end positions
+    private static class Positions {
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        int size;
+
+        void push(int start, int end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        void pop() {
+            size--;
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+package io.github.mthli.knife;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Format known to Knife: its {@link KnifeSpan} interface, traits, span factory and HTML tags.
+ * <p>
+ * Span classes are matched to types by the interfaces they implement, matches are cached per class
+ * so that finding a type of a span is a single map lookup, no matter how many types are registered.
+ * Custom character formats can be added with
+ * {@link #register(Class, KnifeSpan.Factory, String...)}.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
+public final class SpanType {
+
+    // Type ids are used as FormatState flags
+    private static final int MAX_TYPES = 31;
+
+    private static final Map<Class, SpanType> CLASSES = new ConcurrentHashMap<>();
+    private static final Map<String, SpanType> TAGS = new ConcurrentHashMap<>();
+    private static volatile SpanType[] types = new SpanType[0];
+
+    // Cached for classes which are not Knife spans, since concurrent map does not accept nulls
+    private static final SpanType NONE = new SpanType(-1, KnifeSpan.class, false, false, null, "");
+
+    public static final SpanType BOLD =
+            add(KnifeSpan.Bold.class, false, true, null, "b", "strong");
+    public static final SpanType ITALIC =
+            add(KnifeSpan.Italic.class, false, true, null, "i", "em", "cite", "dfn");
+    public static final SpanType UNDERLINE =
+            add(KnifeSpan.Underline.class, false, true, null, "u", "ins");
+    // Using standard strikethrough tag <del> rather than <s> or <strike>
+    public static final SpanType STRIKE =
+            add(KnifeSpan.Strike.class, false, true, null, "del", "s", "strike");
+    public static final SpanType BULLET =
+            add(KnifeSpan.Bullet.class, true, true, null, "li");
+    public static final SpanType QUOTE =
+            add(KnifeSpan.Quote.class, true, true, null, "blockquote");
+    // Links are not split or merged, since each of them has its own URL
+    public static final SpanType URL =
+            add(KnifeSpan.Link.class, false, false, null, "a");
+
+    private final int id;
+    private final Class format;
+    private final boolean paragraph;
+    private final boolean splittable;
+    private final KnifeSpan.Factory factory;
+    private final String tag;
+    private final String startTag;
+    private final String endTag;
+
+    private SpanType(int id, Class format, boolean paragraph, boolean splittable,
+            KnifeSpan.Factory factory, String tag) {
+        this.id = id;
+        this.format = format;
+        this.paragraph = paragraph;
+        this.splittable = splittable;
+        this.factory = factory;
+        this.tag = tag;
+        this.startTag = "<" + tag + ">";
+        this.endTag = "</" + tag + ">";
+    }
+
+    /**
+     * Registers custom character format. Spans of this format will be created by given factory,
+     * written into HTML with the first of given tags and parsed from any of them.
+     * Custom formats should be registered before any text is processed, e.g. on app start.
+     *
+     * @param format Interface extending {@link KnifeSpan}, which is implemented by format's spans
+     */
+    public static synchronized SpanType register(Class format, KnifeSpan.Factory factory,
+            String... tags) {
+        //noinspection unchecked
+        if (!format.isInterface() || !KnifeSpan.class.isAssignableFrom(format)) {
+            throw new IllegalArgumentException("Format should be an interface extending KnifeSpan");
+        }
+        //noinspection unchecked
+        if (KnifeSpan.Paragraph.class.isAssignableFrom(format)) {
+            throw new IllegalArgumentException("Custom paragraph formats are not supported");
+        }
+        if (factory == null || tags.length == 0) {
+            throw new IllegalArgumentException("Factory and at least one tag are required");
+        }
+        return add(format, false, true, factory, tags);
+    }
+
+    private static synchronized SpanType add(Class format, boolean paragraph, boolean splittable,
+            KnifeSpan.Factory factory, String... tags) {
+        if (types.length == MAX_TYPES) {
+            throw new IllegalStateException("Too many span types");
+        }
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < types.length; i++) {
+            final Class other = types[i].format;
+            //noinspection unchecked
+            if (other.isAssignableFrom(format) || format.isAssignableFrom(other)) {
+                throw new IllegalArgumentException(
+                        "Format is already registered: " + format.getSimpleName());
+            }
+        }
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < tags.length; i++) {
+            if (TAGS.containsKey(tags[i])) {
+                throw new IllegalArgumentException("Tag is already registered: " + tags[i]);
+            }
+        }
+
+        final SpanType type =
+                new SpanType(types.length, format, paragraph, splittable, factory, tags[0]);
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < tags.length; i++) {
+            TAGS.put(tags[i], type);
+        }
+        final SpanType[] updated = Arrays.copyOf(types, types.length + 1);
+        updated[type.id] = type;
+        types = updated;
+
+        // Classes cached as unknown may implement the new format
+        CLASSES.clear();
+        return type;
+    }
+
+    /**
+     * Returns type of spans of given class, or null if it is not a Knife span class.
+     * Format interfaces themselves, e.g. {@link KnifeDocument#BOLD}, are accepted too.
+     */
+    public static SpanType of(Class spanClass) {
+        SpanType type = CLASSES.get(spanClass);
+        if (type == null) {
+            type = find(spanClass);
+            CLASSES.put(spanClass, type);
+        }
+        return type == NONE ? null : type;
+    }
+
+    /**
+     * Returns type of given span, or null if it is not a Knife span.
+     */
+    public static SpanType ofSpan(Object span) {
+        return span instanceof KnifeSpan ? of(span.getClass()) : null;
+    }
+
+    // Array should not be modified, ids of the types are same as their indices
+    static SpanType[] all() {
+        return types;
+    }
+
+    static SpanType ofTag(String tag) {
+        return TAGS.get(tag);
+    }
+
+    private static SpanType find(Class spanClass) {
+        final SpanType[] all = types;
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < all.length; i++) {
+            //noinspection unchecked
+            if (all[i].format.isAssignableFrom(spanClass)) {
+                return all[i];
+            }
+        }
+        return NONE;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns {@link FormatState} flag of this type.
+     */
+    public int getFlag() {
+        return 1 << id;
+    }
+
+    public Class getFormat() {
+        return format;
+    }
+
+    /**
+     * Whether spans of this type are applied to whole lines.
+     */
+    public boolean isParagraph() {
+        return paragraph;
+    }
+
+    /**
+     * Whether spans of this type can be split when format is removed from a part of the span,
+     * and merged with adjacent spans when it is added.
+     */
+    public boolean isSplittable() {
+        return splittable;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    boolean isCustom() {
+        return factory != null;
+    }
+
+    Object createSpan(String url) {
+        return factory.createSpan(format, url);
+    }
+
+    void writeStart(KnifeHtmlWriter out, Object span) throws IOException {
+        if (span instanceof KnifeSpan.Link) {
+            out.append("<a href=\"");
+            out.append(((KnifeSpan.Link) span).getURL());
+            out.append("\">");
+        } else {
+            out.append(startTag);
+        }
+    }
+
+    void writeEnd(KnifeHtmlWriter out) throws IOException {
+        out.append(endTag);
+    }
+
+    @Override
+    public String toString() {
+        return format.getSimpleName();
+    }
+
+}
@@ -0,0 +1,269 @@
+package io.github.mthli.knife;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KnifeDocumentTest {
+
+    @Test
+    public void characterFormatsMatchSpanBySpanLogic() {
+        final Random random = new Random(21);
+
+        for (int doc = 0; doc < 300; doc++) {
+            final String source = "plain text\nsecond line\n\nthird line of the text";
+            final KnifeDocument document = new KnifeDocument(new KnifeSpannableBuilder(source));
+            final KnifeSpannableBuilder expected = new KnifeSpannableBuilder(source);
+
+            for (int step = 0; step < 60; step++) {
+                final KnifeSpannable text = document.getText();
+                final int length = text.length();
+                final int start = random.nextInt(length + 1);
+                final int end = Math.min(length, start + random.nextInt(15));
+                final Class format =
+                        TestTexts.CHAR_FORMATS[random.nextInt(TestTexts.CHAR_FORMATS.length)];
+                final int action = random.nextInt(5);
+
+                if (action < 2) {
+                    document.set(format, start, end);
+                    LegacyFormats.setSpan(expected, format, start, end);
+                } else if (action < 4) {
+                    document.remove(format, start, end);
+                    LegacyFormats.removeSpan(expected, format, start, end);
+                } else {
+                    final String insert = random.nextBoolean() ? "" : "xy";
+                    ((KnifeEditable) text).replace(start, end, insert);
+                    expected.replace(start, end, insert);
+                }
+
+                assertEquals("Step " + step, TestTexts.describeSpans(expected),
+                        TestTexts.describeSpans(text));
+            }
+        }
+    }
+
+    @Test
+    public void characterFormatsOfOverlappingSpansChangeOnlyTheRange() {
+        final Random random = new Random(210);
+
+        for (int doc = 0; doc < 300; doc++) {
+            final String html = TestTexts.randomHtml(random, 40);
+            final KnifeSpannableBuilder text = new KnifeSpannableBuilder();
+            KnifeParser.fromHtml(html, KnifeSpans.FACTORY, text);
+            final KnifeDocument document = new KnifeDocument(text);
+
+            // Overlapping spans of same format, as left by nested tags
+            for (int i = 0; i < 6 && text.length() > 0; i++) {
+                final Class format =
+                        TestTexts.CHAR_FORMATS[random.nextInt(TestTexts.CHAR_FORMATS.length)];
+                final int start = random.nextInt(text.length() + 1);
+                final int end = Math.min(text.length(), start + random.nextInt(8));
+                text.setSpan(KnifeSpans.FACTORY.createSpan(format, null), start, end,
+                        KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+            }
+
+            for (int step = 0; step < 5; step++) {
+                final int length = text.length();
+                final int start = random.nextInt(length + 1);
+                final int end = Math.min(length, start + random.nextInt(15));
+                final Class format =
+                        TestTexts.CHAR_FORMATS[random.nextInt(TestTexts.CHAR_FORMATS.length)];
+                final boolean set = random.nextBoolean();
+
+                final boolean[] expected = new boolean[length];
+                for (int pos = 0; pos < length; pos++) {
+                    expected[pos] = pos >= start && pos < end ? set : isCovered(text, format, pos);
+                }
+                if (set) {
+                    document.set(format, start, end);
+                } else {
+                    document.remove(format, start, end);
+                }
+
+                for (int pos = 0; pos < length; pos++) {
+                    assertEquals(html + " step " + step + " at " + pos, expected[pos],
+                            isCovered(text, format, pos));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void multipleRangesMatchSingleRanges() {
+        final Random random = new Random(22);
+
+        for (int doc = 0; doc < 3000; doc++) {
+            final String html = TestTexts.randomHtml(random, 30);
+            final KnifeDocument document = KnifeDocument.fromHtml(html);
+            final KnifeDocument expected = KnifeDocument.fromHtml(html);
+            final int length = document.getText().length();
+            final Class format = TestTexts.FORMATS[random.nextInt(TestTexts.FORMATS.length)];
+
+            final int count = 1 + random.nextInt(4);
+            final int[] ranges = new int[count * 2];
+            for (int i = 0; i < count; i++) {
+                ranges[i * 2] = random.nextInt(length + 1);
+                ranges[i * 2 + 1] = random.nextBoolean()
+                        ? ranges[i * 2] : random.nextInt(length + 1);
+            }
+
+            boolean has = true;
+            for (int i = 0; i < ranges.length; i += 2) {
+                has &= expected.has(format, min(ranges, i), max(ranges, i));
+            }
+            final String message = html + " " + Arrays.toString(ranges);
+            assertEquals(message, has, document.has(format, ranges));
+
+            final int action = random.nextInt(3);
+            final boolean set = action == 0 || action == 2 && !has;
+            if (action == 0) {
+                document.set(format, ranges);
+            } else if (action == 1) {
+                document.remove(format, ranges);
+            } else {
+                document.toggle(format, ranges);
+            }
+            // Carets are handled after all other ranges
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < ranges.length; i += 2) {
+                    if ((ranges[i] == ranges[i + 1]) != (pass == 1)) {
+                        continue;
+                    }
+                    if (set) {
+                        expected.set(format, min(ranges, i), max(ranges, i));
+                    } else {
+                        expected.remove(format, min(ranges, i), max(ranges, i));
+                    }
+                }
+            }
+
+            final KnifeSpanned text = document.getText();
+            for (int pos = 0; pos <= length; pos++) {
+                assertEquals(message, expected.has(format, pos, pos),
+                        document.has(format, pos, pos));
+                if (pos < length) {
+                    assertEquals(message, expected.has(format, pos, pos + 1),
+                            document.has(format, pos, pos + 1));
+                }
+            }
+            assertEquals(message, expected.getHtml(), KnifeParser.toHtml(text));
+        }
+    }
+
+    @Test
+    public void rangeHtmlMatchesHtmlOfCopy() {
+        final Random random = new Random(16);
+
+        for (int doc = 0; doc < 300; doc++) {
+            final KnifeDocument document =
+                    KnifeDocument.fromHtml(TestTexts.randomHtml(random, 40));
+            final KnifeEditable text = (KnifeEditable) document.getText();
+
+            for (int step = 0; step < 10; step++) {
+                TestTexts.randomEdit(random, document, text);
+
+                final int start = random.nextInt(text.length() + 1);
+                final int end = start + random.nextInt(text.length() - start + 1);
+                final KnifeSpannableBuilder copy = new KnifeSpannableBuilder(text, start, end);
+                assertEquals(start + "-" + end + " of " + document.getHtml(),
+                        KnifeParser.toHtml(copy), document.getHtml(start, end));
+            }
+        }
+    }
+
+    private static boolean isCovered(KnifeSpanned text, Class format, int pos) {
+        final Object[] spans = text.getSpans(pos, pos + 1, format);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            if (text.getSpanStart(spans[i]) <= pos && text.getSpanEnd(spans[i]) > pos) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int min(int[] ranges, int i) {
+        return Math.min(ranges[i], ranges[i + 1]);
+    }
+
+    private static int max(int[] ranges, int i) {
+        return Math.max(ranges[i], ranges[i + 1]);
+    }
+
+
+    // Character formats logic before spans were set and removed in a single pass, which splits
+    // spans at range bounds and adds back the parts left outside one by one
+    private static class LegacyFormats {
+
+        static void setSpan(KnifeSpannable text, Class format, int start, int end) {
+            if (start == end) {
+                final Object[] spans = text.getSpans(start, end, format);
+                //noinspection ForLoopReplaceableByForEach
+                for (int i = 0; i < spans.length; i++) {
+                    if (text.getSpanEnd(spans[i]) == end) {
+                        setSpanFlag(text, spans[i], KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+                    }
+                }
+                return;
+            }
+
+            removeSpan(text, format, start, end);
+
+            final Object[] spansBefore = text.getSpans(start, start, format);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < spansBefore.length; i++) {
+                start = Math.min(start, text.getSpanStart(spansBefore[i]));
+                text.removeSpan(spansBefore[i]);
+            }
+
+            final Object[] spansAfter = text.getSpans(end, end, format);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < spansAfter.length; i++) {
+                end = Math.max(end, text.getSpanEnd(spansAfter[i]));
+                text.removeSpan(spansAfter[i]);
+            }
+
+            text.setSpan(KnifeSpans.FACTORY.createSpan(format, null), start, end,
+                    KnifeSpanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        }
+
+        static void removeSpan(KnifeSpannable text, Class format, int start, int end) {
+            if (start == end) {
+                final Object[] spans = text.getSpans(start, end, format);
+                //noinspection ForLoopReplaceableByForEach
+                for (int i = 0; i < spans.length; i++) {
+                    if (text.getSpanEnd(spans[i]) == end) {
+                        setSpanFlag(text, spans[i], KnifeSpanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    }
+                }
+                return;
+            }
+
+            final Object[] spans = text.getSpans(start, end, format);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < spans.length; i++) {
+                final int spanStart = text.getSpanStart(spans[i]);
+                final int spanEnd = text.getSpanEnd(spans[i]);
+                text.removeSpan(spans[i]);
+
+                if (spanStart < start) {
+                    setSpan(text, format, spanStart, start);
+                }
+                if (end < spanEnd) {
+                    setSpan(text, format, end, spanEnd);
+                }
+            }
+        }
+
+        private static void setSpanFlag(KnifeSpannable text, Object span, int flag) {
+            final int start = text.getSpanStart(span);
+            final int end = text.getSpanEnd(span);
+            text.removeSpan(span);
+            text.setSpan(span, start, end, flag);
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package io.github.mthli.knife;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class KnifeFingerprintTest {
+
+    @Test
+    public void fingerprintMatchesFullHash() {
+        final Random random = new Random(20);
+
+        for (int doc = 0; doc < 200; doc++) {
+            final ReportingText text = new ReportingText(TestTexts.randomHtml(random, 40));
+            final KnifeDocument document = new KnifeDocument(text);
+            final KnifeHtmlCache cache = new KnifeHtmlCache(text.fragments);
+            final KnifeFingerprint fingerprint = new KnifeFingerprint(text.fragments);
+
+            for (int step = 0; step < 60; step++) {
+                TestTexts.randomEdit(random, document, text);
+                if (random.nextInt(4) == 0) {
+                    cache.getHtml(text); // Fragments are shared and can be split by the cache
+                }
+                if (random.nextInt(3) == 0) {
+                    assertEquals(KnifeFingerprint.of(text), fingerprint.get(text));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fingerprintDoesNotDependOnSpanSplits() {
+        final Random random = new Random(21);
+
+        for (int doc = 0; doc < 300; doc++) {
+            final KnifeDocument document =
+                    KnifeDocument.fromHtml(TestTexts.randomHtml(random, 40));
+            final KnifeSpannable text = document.getText();
+
+            // Adding overlapping copies of existing spans, which do not change formats
+            final Object[] spans = text.getSpans(0, text.length(), KnifeSpan.class);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < spans.length; i++) {
+                final int start = text.getSpanStart(spans[i]);
+                final int end = text.getSpanEnd(spans[i]);
+                if (!(spans[i] instanceof KnifeSpan.Paragraph) && end - start > 1) {
+                    final int split = start + 1 + random.nextInt(end - start - 1);
+                    text.setSpan(copy(spans[i]), start, split, text.getSpanFlags(spans[i]));
+                }
+            }
+
+            final long before = KnifeFingerprint.of(text);
+            document.compact();
+            assertEquals(KnifeParser.toHtml(text), before, KnifeFingerprint.of(text));
+        }
+    }
+
+    @Test
+    public void fingerprintDependsOnFormatsAndLinks() {
+        final KnifeDocument plain = KnifeDocument.fromHtml("one two");
+        final KnifeDocument bold = KnifeDocument.fromHtml("<b>one</b> two");
+        final KnifeDocument link = KnifeDocument.fromHtml("<a href=\"a\">one</a> two");
+        final KnifeDocument otherLink = KnifeDocument.fromHtml("<a href=\"b\">one</a> two");
+
+        assertNotEquals(plain.fingerprint(), bold.fingerprint());
+        assertNotEquals(plain.fingerprint(), link.fingerprint());
+        assertNotEquals(link.fingerprint(), otherLink.fingerprint());
+        assertEquals(bold.fingerprint(), KnifeDocument.fromHtml("<b>on</b><b>e</b> two")
+                .fingerprint());
+    }
+
+    private static Object copy(Object span) {
+        return span instanceof KnifeSpan.Link
+                ? new KnifeSpans.LinkSpan(((KnifeSpan.Link) span).getURL())
+                : KnifeSpans.FACTORY.createSpan(KnifeDocument.formatOf(span.getClass()), null);
+    }
+
+}
@@ -0,0 +1,51 @@
+package io.github.mthli.knife;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KnifeHtmlCacheTest {
+
+    @Test
+    public void cachedHtmlMatchesFullConversion() {
+        final Random random = new Random(17);
+
+        for (int doc = 0; doc < 200; doc++) {
+            final ReportingText text = new ReportingText(TestTexts.randomHtml(random, 40));
+            final KnifeDocument document = new KnifeDocument(text);
+            final KnifeHtmlCache cache = new KnifeHtmlCache(text.fragments);
+
+            for (int step = 0; step < 60; step++) {
+                TestTexts.randomEdit(random, document, text);
+                if (random.nextInt(3) == 0) {
+                    assertEquals(KnifeParser.toHtml(text), cache.getHtml(text));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cachedHtmlMatchesFullConversionForManyParagraphs() {
+        final Random random = new Random(170);
+
+        for (int doc = 0; doc < 10; doc++) {
+            final StringBuilder html = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                html.append(TestTexts.randomHtml(random, 5)).append("<br>");
+            }
+            final ReportingText text = new ReportingText(html.toString());
+            final KnifeDocument document = new KnifeDocument(text);
+            final KnifeHtmlCache cache = new KnifeHtmlCache(text.fragments);
+
+            for (int step = 0; step < 200; step++) {
+                TestTexts.randomEdit(random, document, text);
+                if (random.nextInt(10) == 0) {
+                    assertEquals(KnifeParser.toHtml(text), cache.getHtml(text));
+                }
+            }
+        }
+    }
+
+}
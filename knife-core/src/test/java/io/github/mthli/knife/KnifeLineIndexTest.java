@@ -0,0 +1,77 @@
+package io.github.mthli.knife;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KnifeLineIndexTest {
+
+    @Test
+    public void lineBoundsMatchTextScan() {
+        final Random random = new Random(15);
+        final String[] inserts = { "", "a", "\n", "ab\ncd", "\n\n", "xyz" };
+
+        for (int doc = 0; doc < 200; doc++) {
+            final KnifeSpannableBuilder text = new KnifeSpannableBuilder("one\ntwo\n\nthree");
+            final KnifeLineIndex index = text.getLineIndex();
+
+            for (int step = 0; step < 50; step++) {
+                final int length = text.length();
+                final int start = random.nextInt(length + 1);
+                final int end = Math.min(length, start + random.nextInt(6));
+
+                if (random.nextInt(4) == 0) {
+                    // Single char appends are indexed separately
+                    text.append(random.nextBoolean() ? '\n' : 'c');
+                } else {
+                    text.replace(start, end, inserts[random.nextInt(inserts.length)]);
+                }
+
+                assertLineBounds(text, index);
+            }
+        }
+    }
+
+    @Test
+    public void singleCharAppendsUpdateLineBounds() {
+        final KnifeSpannableBuilder text = new KnifeSpannableBuilder();
+        final KnifeLineIndex index = text.getLineIndex();
+        final String source = "one\ntwo\n\nthree\n";
+        for (int i = 0; i < source.length(); i++) {
+            text.append(source.charAt(i));
+            assertLineBounds(text, index);
+        }
+
+        // Parser appends line breaks one by one
+        final KnifeSpannableBuilder parsed = new KnifeSpannableBuilder();
+        KnifeParser.fromHtml("one<br>two<br><br>three", KnifeSpans.FACTORY, parsed);
+        assertLineBounds(parsed, parsed.getLineIndex());
+    }
+
+    private static void assertLineBounds(CharSequence text, KnifeLineIndex index) {
+        for (int pos = 0; pos <= text.length(); pos++) {
+            final String message = "'" + text + "' at " + pos;
+            assertEquals(message, scanLineStart(text, pos), index.findLineStart(pos));
+            assertEquals(message, scanLineEnd(text, pos), index.findLineEnd(pos));
+        }
+        assertEquals(-1, index.findLineStart(text.length() + 1));
+        assertEquals(-1, index.findLineEnd(-1));
+    }
+
+    private static int scanLineStart(CharSequence text, int pos) {
+        while (pos > 0 && text.charAt(pos - 1) != '\n') {
+            pos--;
+        }
+        return pos;
+    }
+
+    private static int scanLineEnd(CharSequence text, int pos) {
+        while (pos < text.length() && text.charAt(pos) != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+}
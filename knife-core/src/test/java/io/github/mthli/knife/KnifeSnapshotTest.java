@@ -0,0 +1,47 @@
+package io.github.mthli.knife;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KnifeSnapshotTest {
+
+    private static final Class[] QUERIED_TYPES = {
+            Object.class, KnifeSpan.class, KnifeSpan.Paragraph.class, KnifeDocument.BOLD,
+            KnifeDocument.BULLET, KnifeDocument.QUOTE, KnifeDocument.URL, KnifeSpans.BoldSpan.class
+    };
+
+    @Test
+    public void spansMatchLiveText() {
+        final Random random = new Random(18);
+
+        for (int doc = 0; doc < 300; doc++) {
+            final KnifeDocument document =
+                    KnifeDocument.fromHtml(TestTexts.randomHtml(random, 40));
+            final KnifeEditable text = (KnifeEditable) document.getText();
+
+            for (int step = 0; step < 20; step++) {
+                TestTexts.randomEdit(random, document, text);
+
+                final KnifeSnapshot snapshot = document.snapshot();
+                assertEquals(text.toString(), snapshot.toString());
+                assertEquals(document.getHtml(), snapshot.getHtml());
+
+                for (int i = 0; i < 10; i++) {
+                    final int start = random.nextInt(text.length() + 1);
+                    final int end = Math.min(text.length(), start + random.nextInt(10));
+                    final Class type = QUERIED_TYPES[random.nextInt(QUERIED_TYPES.length)];
+                    final String message = text + " " + start + "-" + end + " " + type;
+
+                    assertEquals(message, TestTexts.describeSpans(text, start, end, type),
+                            TestTexts.describeSpans(snapshot, start, end, type));
+                    assertEquals(message, text.nextSpanTransition(start, end, type),
+                            snapshot.nextSpanTransition(start, end, type));
+                }
+            }
+        }
+    }
+
+}
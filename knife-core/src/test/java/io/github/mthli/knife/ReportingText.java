@@ -0,0 +1,112 @@
+package io.github.mthli.knife;
+
+/**
+ * Text which reports its changes to the fragments same as Knife does from its watchers.
+ */
+class ReportingText implements KnifeEditable {
+    final KnifeFragments fragments = new KnifeFragments();
+    private final KnifeSpannableBuilder text = new KnifeSpannableBuilder();
+
+    ReportingText(String html) {
+        KnifeParser.fromHtml(html, KnifeSpans.FACTORY, text);
+    }
+
+    @Override
+    public KnifeEditable replace(int start, int end, CharSequence source) {
+        text.replace(start, end, source);
+        onTextChanged(start, end - start, source.length());
+        return this;
+    }
+
+    @Override
+    public KnifeEditable insert(int where, CharSequence source) {
+        return replace(where, where, source);
+    }
+
+    @Override
+    public KnifeEditable delete(int start, int end) {
+        return replace(start, end, "");
+    }
+
+    @Override
+    public KnifeEditable append(CharSequence source) {
+        return replace(length(), length(), source);
+    }
+
+    @Override
+    public KnifeEditable append(char c) {
+        return replace(length(), length(), String.valueOf(c));
+    }
+
+    @Override
+    public void setSpan(Object span, int start, int end, int flags) {
+        if (text.getSpanStart(span) != -1) {
+            onSpanChanged(text.getSpanStart(span), text.getSpanEnd(span));
+        }
+        text.setSpan(span, start, end, flags);
+        onSpanChanged(start, end);
+    }
+
+    @Override
+    public void removeSpan(Object span) {
+        final int start = text.getSpanStart(span);
+        if (start != -1) {
+            onSpanChanged(start, text.getSpanEnd(span));
+        }
+        text.removeSpan(span);
+    }
+
+    @Override
+    public <T> T[] getSpans(int start, int end, Class<T> type) {
+        return text.getSpans(start, end, type);
+    }
+
+    @Override
+    public int getSpanStart(Object span) {
+        return text.getSpanStart(span);
+    }
+
+    @Override
+    public int getSpanEnd(Object span) {
+        return text.getSpanEnd(span);
+    }
+
+    @Override
+    public int getSpanFlags(Object span) {
+        return text.getSpanFlags(span);
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class type) {
+        return text.nextSpanTransition(start, limit, type);
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    private void onTextChanged(int start, int before, int count) {
+        fragments.onTextChanged(start, before, count);
+    }
+
+    private void onSpanChanged(int start, int end) {
+        fragments.onSpanChanged(start, end);
+    }
+
+}
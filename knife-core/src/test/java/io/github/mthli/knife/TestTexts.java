@@ -0,0 +1,86 @@
+package io.github.mthli.knife;
+
+import java.util.Random;
+
+/**
+ * Random documents and edits for tests comparing optimized logic with a straightforward one.
+ */
+class TestTexts {
+
+    static final Class[] CHAR_FORMATS = {
+            KnifeDocument.BOLD, KnifeDocument.ITALIC, KnifeDocument.UNDERLINE, KnifeDocument.STRIKE
+    };
+    // Links are set with setLink() instead
+    static final Class[] FORMATS = {
+            KnifeDocument.BOLD, KnifeDocument.ITALIC, KnifeDocument.UNDERLINE, KnifeDocument.STRIKE,
+            KnifeDocument.BULLET, KnifeDocument.QUOTE
+    };
+
+    private static final String[] PARTS = {
+            "plain ", "text", "a", " ", "<br>", "<br/>", "&amp;", "&lt;", "&#65;", "&nbsp;",
+            "&bogus;", "&", "<", "<b>", "</b>", "<i>", "</i>", "<u>", "</u>", "<del>", "</del>",
+            "<ul><li>", "</li><li>", "</li></ul>", "<blockquote>", "</blockquote>", "<p>", "</p>",
+            "<div>", "</div>", "<a href=\"http://a.b/?c=1&amp;d=2\">", "<a href='x>y'>", "</a>",
+            "<!-- comment > -->", "<!doctype html>", "<?xml?>", "<span class=\"x\">", "</span>",
+            "<b><i>", "</i></b>", "\n", "  "
+    };
+
+    private TestTexts() {}
+
+    static String randomHtml(Random random, int parts) {
+        final StringBuilder html = new StringBuilder();
+        for (int i = 0; i < parts; i++) {
+            html.append(PARTS[random.nextInt(PARTS.length)]);
+        }
+        return html.toString();
+    }
+
+    /**
+     * Applies random text change or formatting to the document.
+     */
+    static void randomEdit(Random random, KnifeDocument document, KnifeEditable text) {
+        final int length = text.length();
+        final int start = random.nextInt(length + 1);
+        final int end = Math.min(length, start + random.nextInt(12));
+        final int action = random.nextInt(10);
+
+        if (action < 4) {
+            final String[] inserts = { "", "x", "\n", "yz\n" };
+            text.replace(start, random.nextBoolean() ? end : start,
+                    inserts[random.nextInt(inserts.length)]);
+        } else if (action < 9) {
+            document.toggle(FORMATS[random.nextInt(FORMATS.length)], start, end);
+        } else if (start < end) {
+            document.setLink("u" + random.nextInt(3), start, end);
+        }
+    }
+
+    /**
+     * Describes spans in the order they are returned, with their bounds and flags.
+     */
+    static String describeSpans(KnifeSpanned text, int start, int end, Class type) {
+        final StringBuilder out = new StringBuilder();
+        final Object[] spans = text.getSpans(start, end, type);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            out.append(describeSpan(spans[i]))
+                    .append(' ').append(text.getSpanStart(spans[i]))
+                    .append('-').append(text.getSpanEnd(spans[i]))
+                    .append(':').append(text.getSpanFlags(spans[i]))
+                    .append(", ");
+        }
+        return out.toString();
+    }
+
+    static String describeSpans(KnifeSpanned text) {
+        return describeSpans(text, 0, text.length(), Object.class);
+    }
+
+    private static String describeSpan(Object span) {
+        if (span instanceof KnifeSpan.Link) {
+            return "link(" + ((KnifeSpan.Link) span).getURL() + ")";
+        }
+        return span.getClass().getSimpleName();
+    }
+
+}
@@ -1,7 +1,5 @@
 package io.github.mthli.knife;
 
-import android.content.res.TypedArray;
-import android.graphics.Color;
 import android.text.Editable;
 import android.text.ParcelableSpan;
 import android.text.Selection;
@@ -11,14 +9,9 @@ import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextWatcher;
-import android.text.style.BulletSpan;
-import android.text.style.QuoteSpan;
-import android.text.style.StrikethroughSpan;
-import android.text.style.StyleSpan;
-import android.text.style.URLSpan;
 import android.text.style.UnderlineSpan;
+import android.text.style.UpdateLayout;
 import android.util.Log;
-import android.util.TypedValue;
 import android.widget.TextView;
 
 import io.github.mthli.knife.spans.KnifeBoldSpan;
@@ -29,6 +22,12 @@ import io.github.mthli.knife.spans.KnifeStrikethroughSpan;
 import io.github.mthli.knife.spans.KnifeURLSpan;
 import io.github.mthli.knife.spans.KnifeUnderlineSpan;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.Executor;
+
 @SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
 public class Knife {
 
@@ -40,61 +39,111 @@ public class Knife {
     public static final Class QUOTE = KnifeQuoteSpan.class;
     public static final Class URL = KnifeURLSpan.class;
 
+    private static final long AUTO_COMPACT_DELAY = 2000L;
+
+    private static final UpdateLayout RELAYOUT_SPAN = new UpdateLayout() {};
+
     private final TextView textView;
 
     private OnSelectionChangedListener selectionListener;
+    private OnFormatChangedListener formatListener;
+    private FormatState formatState;
     private SpanWatcher spanWatcher;
 
-    private int bulletColor = Color.BLUE;
-    private int bulletRadius = 2;
-    private int bulletGap = 8;
-    private int linkColor = 0; // Defaults to textColorLink XML attribute
-    private boolean linkUnderline = true;
-    private int quoteColor = Color.BLUE;
-    private int quoteStripeWidth = 2;
-    private int quoteGap = 8;
+    // Referenced by spans instead of the style itself, so that they can be restyled at once
+    private final KnifeStyle.Holder style = new KnifeStyle.Holder();
 
-    private String currentUrl;
+    private KnifeLoadTask loadTask;
 
-    public Knife(final TextView textView) {
-        this.textView = textView;
+    private final KnifeSpan.Factory spanFactory = new KnifeSpan.Factory() {
+        @Override
+        public Object createSpan(Class spanClass, String url) {
+            return Knife.this.createSpan(spanClass, url);
+        }
+    };
+    private KnifeDocument document;
+
+    // Bounds of the text changed since the last fixChangedText() call, -1 if unknown
+    private int changeStart = -1;
+    private int changeEnd = -1;
+
+    private final KnifeHistory history = new KnifeHistory();
+
+    // HTML and hashes of unchanged paragraphs, kept between getHtml() and fingerprint() calls
+    private final KnifeFragments fragments = new KnifeFragments();
+    private final KnifeHtmlCache htmlCache = new KnifeHtmlCache(fragments);
+    private final KnifeFingerprint fingerprint = new KnifeFingerprint(fragments);
+
+    // Snapshot of the current text, dropped on any change
+    private KnifeSnapshot snapshot;
+    private Spannable snapshotText;
 
-        bulletRadius = convertDpToPixels(bulletRadius);
-        bulletGap = convertDpToPixels(bulletGap);
-        quoteStripeWidth = convertDpToPixels(quoteStripeWidth);
-        quoteGap = convertDpToPixels(quoteGap);
-
-        TypedArray arr = textView.getContext().obtainStyledAttributes(null, R.styleable.Knife);
-        bulletColor = arr.getColor(R.styleable.Knife_knife_bulletColor, bulletColor);
-        bulletRadius = arr.getDimensionPixelSize(
-                R.styleable.Knife_knife_bulletRadius, bulletRadius);
-        bulletGap = arr.getDimensionPixelSize(R.styleable.Knife_knife_bulletGap, bulletGap);
-        linkColor = arr.getColor(R.styleable.Knife_knife_linkColor, linkColor);
-        linkUnderline = arr.getBoolean(R.styleable.Knife_knife_linkColor, linkUnderline);
-        quoteColor = arr.getColor(R.styleable.Knife_knife_quoteColor, 0);
-        quoteStripeWidth = arr.getDimensionPixelSize(
-                R.styleable.Knife_knife_quoteStripeWidth, quoteStripeWidth);
-        quoteGap = arr.getDimensionPixelSize(R.styleable.Knife_knife_quoteGap, quoteGap);
-        arr.recycle();
+    private KnifeAutosave autosave;
 
+    // Last text change, spans moved by it are reported only after the change is done
+    private int lastChangeStart = -1;
+    private int lastChangeBefore;
+    private int lastChangeCount;
+
+    private int batchDepth;
+    private boolean selectionChanged; // Notification deferred by a batch
+
+    private boolean autoCompact;
+    private boolean compacting;
+    private final Runnable autoCompactAction = new Runnable() {
+        @Override
+        public void run() {
+            autoCompact();
+        }
+    };
+
+    public Knife(TextView textView) {
+        this(textView, KnifeStyle.fromTheme(textView.getContext()));
+    }
+
+    /**
+     * Creates editor with given style, which can be shared with other editors instead of reading
+     * it from the theme for each of them.
+     */
+    public Knife(final TextView textView, KnifeStyle style) {
+        this.textView = textView;
+        this.style.current = style;
 
         textView.addTextChangedListener(new TextWatcher() {
             @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                history.beforeTextChanged(s, start, count);
+            }
 
             @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                history.onTextChanged(s, start, before, count);
+                fragments.onTextChanged(start, before, count);
+                onContentChanged();
+                lastChangeStart = start;
+                lastChangeBefore = before;
+                lastChangeCount = count;
+
+                if (changeStart == -1) {
+                    changeStart = start;
+                    changeEnd = start + count;
+                } else {
+                    // Moving bounds of the previous changes, which are not fixed yet in a batch
+                    changeStart = Math.min(movePosition(changeStart, start, before, count), start);
+                    changeEnd = Math.max(movePosition(changeEnd, start, before, count),
+                            start + count);
+                }
+            }
 
             @Override
             public void afterTextChanged(Editable text) {
                 ensureSpanWatcher();
 
-                // Clearing underline span added by autocomplete keyboard and removing styling of
-                // copy-pasted text
-                clearNonKnifeStyles(text);
+                if (batchDepth == 0) {
+                    fixChangedText();
+                }
 
-                fixParagraphs(text, BULLET);
-                fixParagraphs(text, QUOTE);
+                history.afterTextChanged();
             }
         });
 
@@ -106,28 +155,50 @@ public class Knife {
                 if (what.getClass() == UnderlineSpan.class) {
                     text.removeSpan(what);
                 }
+
+                history.onSpanAdded(text, what, start, end);
+                if (KnifeDocument.isKnifeSpan(what)) {
+                    fragments.onSpanChanged(start, end);
+                    onContentChanged();
+                }
             }
 
             @Override
-            public void onSpanRemoved(Spannable text, Object what, int start, int end) {}
+            public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+                history.onSpanRemoved(text, what, start, end);
+                if (KnifeDocument.isKnifeSpan(what)) {
+                    fragments.onSpanChanged(start, end);
+                    onContentChanged();
+                }
+            }
 
             @Override
             public void onSpanChanged(Spannable text, Object what, int ostart, int oend,
                     int nstart, int nend) {
-                if (selectionListener != null) {
-                    if (what == Selection.SELECTION_END) {
-                        selectionListener.onSelectionChanged();
-                    }
+                if (what == Selection.SELECTION_END) {
+                    notifySelectionChanged();
+                }
+                // Spans moved by a text change are already covered by onTextChanged()
+                if (KnifeDocument.isKnifeSpan(what)
+                        && !(isMovedByTextChange(ostart, nstart)
+                        && isMovedByTextChange(oend, nend))) {
+                    fragments.onSpanChanged(ostart, oend);
+                    fragments.onSpanChanged(nstart, nend);
+                    onContentChanged();
                 }
             }
         };
 
         ensureSpanWatcher();
+        history.reset(getText());
     }
 
-    private int convertDpToPixels(int value) {
-        return Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, value,
-                textView.getResources().getDisplayMetrics()));
+    // Called on any change of the text or of its Knife spans
+    private void onContentChanged() {
+        snapshot = null;
+        if (autosave != null) {
+            autosave.onChanged();
+        }
     }
 
     private void ensureSpanWatcher() {
@@ -149,6 +220,60 @@ public class Knife {
     }
 
 
+    // Moves position in the text as if start..start+before was replaced with count chars
+    private static int movePosition(int position, int start, int before, int count) {
+        if (position >= start + before) {
+            return position + count - before;
+        } else if (position > start) {
+            return start + count;
+        } else {
+            return position;
+        }
+    }
+
+    // Android reports spans moved by a text change as changed, though their HTML only changes
+    // within the changed text, which is converted again anyway
+    private boolean isMovedByTextChange(int oldPosition, int newPosition) {
+        if (lastChangeStart == -1) {
+            return false;
+        }
+        if (newPosition == movePosition(oldPosition,
+                lastChangeStart, lastChangeBefore, lastChangeCount)) {
+            return true;
+        }
+        return oldPosition >= lastChangeStart && oldPosition <= lastChangeStart + lastChangeBefore
+                && newPosition >= lastChangeStart
+                && newPosition <= lastChangeStart + lastChangeCount;
+    }
+
+    private void fixChangedText() {
+        if (changeStart == -1) {
+            return;
+        }
+
+        final Spannable text = getText();
+        final KnifeDocument document = getDocument();
+
+        // Only paragraphs touched by the change can contain spans which need fixing
+        final int length = text.length();
+        final int start = Math.min(changeStart, length);
+        final int end = Math.min(changeEnd, length);
+        changeStart = changeEnd = -1;
+
+        // Document's text keeps line index
+        final int lineStart = KnifeDocument.findLineStart(document.getText(), start);
+        final int lineEnd = KnifeDocument.findLineEnd(document.getText(), end);
+
+        // Clearing underline span added by autocomplete keyboard and removing styling of
+        // copy-pasted text
+        clearNonKnifeStyles(text, lineStart, lineEnd);
+
+        document.fixParagraphs(lineStart, lineEnd);
+
+        scheduleAutoCompact();
+    }
+
+
     // Helper ======================================================================================
 
     private void logSpans() {
@@ -161,6 +286,25 @@ public class Knife {
         }
     }
 
+    private void notifySelectionChanged() {
+        if (batchDepth > 0) {
+            selectionChanged = true;
+            return;
+        }
+
+        if (selectionListener != null) {
+            selectionListener.onSelectionChanged();
+        }
+
+        if (formatListener != null) {
+            final FormatState state = getFormatState();
+            if (!state.equals(formatState)) {
+                formatState = state;
+                formatListener.onFormatChanged(state);
+            }
+        }
+    }
+
     private Spannable getText() {
         final CharSequence text = textView.getText();
         if (text instanceof Spannable) {
@@ -171,460 +315,561 @@ public class Knife {
         }
     }
 
-    // Public methods ==============================================================================
-
-    public void setHtml(String html) {
-        if (html == null) {
-            textView.setText(null);
-        } else {
-            SpannableStringBuilder builder = new SpannableStringBuilder();
-            builder.append(KnifeParser.fromHtml(html));
-            switchToKnifeStyle(builder);
-            textView.setText(builder);
-        }
+    private Spannable parseHtml(String html) {
+        final KnifeAndroidText text = new KnifeAndroidText(new SpannableStringBuilder());
+        KnifeParser.fromHtml(html, spanFactory, text);
+        return text.getText();
     }
 
-    public String getHtml() {
-        return KnifeParser.toHtml(getText());
+    private Spannable parseHtml(Reader html) throws IOException {
+        final KnifeAndroidText text = new KnifeAndroidText(new SpannableStringBuilder());
+        KnifeParser.fromHtml(html, spanFactory, text);
+        return text.getText();
     }
 
-    public void set(Class spanClass) {
-        set(spanClass, textView.getSelectionStart(), textView.getSelectionEnd());
-    }
-
-    public void set(Class spanClass, int start, int end) {
-        if (isParagraphSpan(spanClass)) {
-            setParagraph(getText(), spanClass, start, end);
-        } else {
-            setSpan(getText(), spanClass, start, end);
-        }
+    // Public methods ==============================================================================
 
-        if (selectionListener != null) {
-            selectionListener.onSelectionChanged();
+    /**
+     * Returns document wrapping current text of the text view. Formatting done through it is
+     * recorded in undo history and fixed after text changes same as formatting done by Knife.
+     */
+    public KnifeDocument getDocument() {
+        final Spannable text = getText();
+        if (document == null || ((KnifeAndroidText) document.getText()).getText() != text) {
+            document = new KnifeDocument(new KnifeAndroidText(text), spanFactory);
         }
+        return document;
     }
 
-    public void remove(Class spanClass) {
-        remove(spanClass, textView.getSelectionStart(), textView.getSelectionEnd());
+    /**
+     * Starts a batch of changes. Until the matching {@link #endBatch()} call, text fixes and
+     * listener notifications are postponed and then done once for all the changes.
+     * Batches can be nested.
+     */
+    public void beginBatch() {
+        lastChangeStart = -1; // Span changes made from now on are not caused by text changes
+        if (batchDepth++ == 0) {
+            textView.beginBatchEdit();
+        }
+        history.beginStep();
     }
 
-    public void remove(Class spanClass, int start, int end) {
-        if (isParagraphSpan(spanClass)) {
-            removeParagraph(getText(), spanClass, start, end);
-        } else {
-            removeSpan(getText(), spanClass, start, end);
+    public void endBatch() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("endBatch() without beginBatch()");
         }
 
-        if (selectionListener != null) {
-            selectionListener.onSelectionChanged();
+        if (--batchDepth == 0) {
+            fixChangedText();
         }
-    }
-
-    public boolean has(Class spanClass) {
-        return has(spanClass, textView.getSelectionStart(), textView.getSelectionEnd());
-    }
+        history.endStep();
 
-    public boolean has(Class spanClass, int start, int end) {
-        if (isParagraphSpan(spanClass)) {
-            return isFullOfParagraphs(getText(), spanClass, start, end);
-        } else {
-            return isFullySpanned(getText(), spanClass, start, end);
-        }
-    }
+        if (batchDepth == 0) {
+            scheduleAutoCompact();
 
-    public void toggle(Class spanClass) {
-        toggle(spanClass, textView.getSelectionStart(), textView.getSelectionEnd());
-    }
+            if (selectionChanged) {
+                selectionChanged = false;
+                notifySelectionChanged();
+            }
 
-    public void toggle(Class spanClass, int start, int end) {
-        if (isParagraphSpan(spanClass)) {
-            toggleParagraph(getText(), spanClass, start, end);
-        } else {
-            toggleSpan(getText(), spanClass, start, end);
+            textView.endBatchEdit();
         }
+    }
 
-        if (selectionListener != null) {
-            selectionListener.onSelectionChanged();
+    public void runBatch(Runnable changes) {
+        beginBatch();
+        try {
+            changes.run();
+        } finally {
+            endBatch();
         }
     }
 
-    public void clearFormat() {
-        remove(BOLD);
-        remove(ITALIC);
-        remove(UNDERLINE);
-        remove(STRIKE);
-        remove(BULLET);
-        remove(QUOTE);
-        remove(URL);
+    public boolean isInBatch() {
+        return batchDepth > 0;
     }
 
-    public void setLink(String url, int start, int end) {
-        currentUrl = url;
-        set(URL, start, end);
-        currentUrl = null;
-    }
+    public void setHtml(String html) {
+        cancelLoading();
 
-    public Span<String> getLink(int start) {
-        final Spannable text = getText();
-        final URLSpan[] urls = text.getSpans(start, start, URLSpan.class);
-        return urls.length == 0 ? null : new Span<>(urls[0].getURL(),
-                text.getSpanStart(urls[0]), text.getSpanEnd(urls[0]));
+        if (html == null) {
+            textView.setText(null);
+        } else {
+            textView.setText(parseHtml(html));
+        }
     }
 
-    public void setSelectionListener(final OnSelectionChangedListener listener) {
-        selectionListener = listener;
+    /**
+     * Reads HTML in chunks, so that large files are never kept in memory as a whole string.
+     * Reader is not closed.
+     */
+    public void setHtml(Reader html) throws IOException {
+        cancelLoading();
+        textView.setText(parseHtml(html));
     }
 
-    // Spans classes ===============================================================================
-
-    private void clearNonKnifeStyles(Spannable text) {
-        final Object[] spans = text.getSpans(0, text.length(), ParcelableSpan.class);
-
-        //noinspection ForLoopReplaceableByForEach
-        for (int i = 0; i < spans.length; i++) {
-            if (!spans[i].getClass().getSimpleName().startsWith("Knife")) {
-                text.removeSpan(spans[i]);
-            }
-        }
+    public KnifeLoadTask setHtmlAsync(String html, Executor executor) {
+        return setHtmlAsync(html, executor, null);
     }
 
-    private void switchToKnifeStyle(Spannable text) {
-        final Object[] spans = text.getSpans(0, text.length(), Object.class);
+    /**
+     * Parses given HTML on the executor and sets the result into the text view on main thread.
+     * Loading which is still in progress is cancelled by this call or by {@link #setHtml}.
+     * If parsing fails the text is left unchanged and the error is reported on main thread.
+     */
+    public KnifeLoadTask setHtmlAsync(final String html, Executor executor,
+            final OnLoadedListener listener) {
+        cancelLoading();
 
-        Object span;
-        //noinspection ForLoopReplaceableByForEach
-        for (int i = 0; i < spans.length; i++) {
-            span = spans[i];
-
-            if (span.getClass().getSimpleName().startsWith("Knife")) {
-                continue;
-            }
+        final KnifeLoadTask task = new KnifeLoadTask();
+        loadTask = task;
 
-            final int spanStart = text.getSpanStart(span);
-            final int spanEnd = text.getSpanEnd(span);
-
-            if (span instanceof StyleSpan) {
-
-                final int style = ((StyleSpan) span).getStyle();
-
-                if (style == KnifeBoldSpan.STYLE) {
-                    text.removeSpan(span);
-                    setSpan(text, BOLD, spanStart, spanEnd);
-                } else if (style == KnifeItalicSpan.STYLE) {
-                    text.removeSpan(span);
-                    setSpan(text, ITALIC, spanStart, spanEnd);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (task.isCancelled()) {
+                    return;
                 }
 
-            } else if (span instanceof UnderlineSpan) {
+                Spannable parsed = null;
+                RuntimeException parseError = null;
+                try {
+                    parsed = html == null ? null : parseHtml(html);
+                } catch (RuntimeException e) {
+                    parseError = e;
+                }
 
-                text.removeSpan(span);
-                setSpan(text, UNDERLINE, spanStart, spanEnd);
+                final Spannable text = parsed;
+                final RuntimeException error = parseError;
+                textView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (task.isCancelled()) {
+                            return;
+                        }
+
+                        loadTask = null;
+
+                        if (error == null) {
+                            textView.setText(text);
+                            task.setDone();
+                            if (listener != null) {
+                                listener.onLoaded();
+                            }
+                        } else {
+                            task.setFailed(error);
+                            if (listener != null) {
+                                listener.onLoadFailed(error);
+                            }
+                        }
+                    }
+                });
+            }
+        });
 
-            } else if (span instanceof StrikethroughSpan) {
+        return task;
+    }
 
-                text.removeSpan(span);
-                setSpan(text, STRIKE, spanStart, spanEnd);
+    /**
+     * Cancels loading started with {@link #setHtmlAsync}, if any.
+     */
+    public void cancelLoading() {
+        if (loadTask != null) {
+            loadTask.cancel();
+            loadTask = null;
+        }
+    }
 
-            } else if (span instanceof BulletSpan) {
+    /**
+     * Returns HTML of the whole text. Paragraphs which were not changed since the previous call
+     * are not converted again, so it is cheap to call this method often, e.g. for autosaving.
+     */
+    public String getHtml() {
+        return htmlCache.getHtml(getDocument().getText());
+    }
+
+    /**
+     * Writes same HTML as {@link #getHtml()} directly into given writer, without building
+     * the whole output in memory. Writer is not flushed or closed, and it is better to be buffered.
+     */
+    public void writeHtml(Writer writer) throws IOException {
+        htmlCache.writeHtml(getDocument().getText(), writer);
+    }
+
+    /**
+     * Returns hash of the text chars and formats applied to them, which can be used instead of
+     * comparing HTML to find out whether the text was changed. Only parts of the text changed
+     * since the previous call are hashed again, and unchanged text costs nothing to check.
+     * Same as {@link KnifeDocument#fingerprint()} of a document with the same content.
+     */
+    public long fingerprint() {
+        return fingerprint.get(getDocument().getText());
+    }
+
+    /**
+     * Returns immutable copy of the current text with its Knife spans. It can be converted into
+     * HTML on a background thread, e.g. with {@link KnifeSnapshot#writeHtml(Appendable)}, while
+     * the user keeps typing. Same snapshot is returned until the text is changed.
+     * <p>
+     * The first call after a change copies the whole text and all its spans on the calling
+     * (main) thread, which takes time linear in the length of the text, so it should not be
+     * called on every change of a long text.
+     */
+    public KnifeSnapshot snapshot() {
+        final Spannable text = getText();
+        if (snapshot == null || snapshotText != text) {
+            snapshot = getDocument().snapshot();
+            snapshotText = text;
+        }
+        return snapshot;
+    }
 
-                text.removeSpan(span);
-                setParagraph(text, BULLET, spanStart, spanEnd);
+    /**
+     * Starts saving HTML of the text into given file on the executor, each time the text is
+     * changed. Bursts of changes are saved once, see {@link KnifeAutosave}.
+     * Autosave which was started before is stopped.
+     */
+    public KnifeAutosave startAutosave(File file, Executor executor) {
+        stopAutosave();
+        autosave = new KnifeAutosave(this, textView, file, executor);
+        return autosave;
+    }
 
-            } else if (span instanceof QuoteSpan) {
+    /**
+     * Stops autosave, save which is already in progress is still finished.
+     */
+    public void stopAutosave() {
+        if (autosave != null) {
+            autosave.stop();
+            autosave = null;
+        }
+    }
 
-                text.removeSpan(span);
-                setParagraph(text, QUOTE, spanStart, spanEnd);
+    /**
+     * Returns HTML of given text range only, e.g. of a copied selection or a changed paragraph.
+     * Spans crossing range bounds are cut at the bounds.
+     */
+    public String getHtml(int start, int end) {
+        return getDocument().getHtml(start, end);
+    }
 
-            } else if (span instanceof URLSpan) {
+    /**
+     * Writes same HTML as {@link #getHtml(int, int)} directly into given writer.
+     */
+    public void writeHtml(Writer writer, int start, int end) throws IOException {
+        getDocument().writeHtml(writer, start, end);
+    }
 
-                text.removeSpan(span);
-                currentUrl = ((URLSpan) span).getURL();
-                setSpan(text, URL, spanStart, spanEnd);
-                currentUrl = null;
+    public void set(Class spanClass) {
+        set(spanClass, textView.getSelectionStart(), textView.getSelectionEnd());
+    }
 
-            }
+    public void set(Class spanClass, int start, int end) {
+        beginBatch();
+        try {
+            getDocument().set(spanClass, start, end);
+            notifySelectionChanged();
+        } finally {
+            endBatch();
         }
     }
 
-    private Object createSpan(Class spanClass) {
-        if (spanClass == BOLD) {
-            return new KnifeBoldSpan();
-        } else if (spanClass == ITALIC) {
-            return new KnifeItalicSpan();
-        } else if (spanClass == UNDERLINE) {
-            return new KnifeUnderlineSpan();
-        } else if (spanClass == STRIKE) {
-            return new KnifeStrikethroughSpan();
-        } else if (spanClass == BULLET) {
-            return new KnifeBulletSpan(bulletColor, bulletRadius, bulletGap);
-        } else if (spanClass == QUOTE) {
-            return new KnifeQuoteSpan(quoteColor, quoteStripeWidth, quoteGap);
-        } else if (spanClass == URL) {
-            if (currentUrl == null || currentUrl.length() == 0) {
-                throw new IllegalArgumentException("Use setLink() method to add links");
-            }
-            return new KnifeURLSpan(currentUrl, linkColor, linkUnderline);
-        } else {
-            throw new IllegalArgumentException("Unknown span type: " + spanClass.getSimpleName());
+    public void remove(Class spanClass) {
+        remove(spanClass, textView.getSelectionStart(), textView.getSelectionEnd());
+    }
+
+    public void remove(Class spanClass, int start, int end) {
+        beginBatch();
+        try {
+            getDocument().remove(spanClass, start, end);
+            notifySelectionChanged();
+        } finally {
+            endBatch();
         }
     }
 
-    private boolean isParagraphSpan(Class spanClass) {
-        return spanClass == BULLET || spanClass == QUOTE;
+    public boolean has(Class spanClass) {
+        return has(spanClass, textView.getSelectionStart(), textView.getSelectionEnd());
     }
 
-    private boolean isSplittableSpan(Class spanClass) {
-        return spanClass != URL;
+    public boolean has(Class spanClass, int start, int end) {
+        return getDocument().has(spanClass, start, end);
     }
 
-    // Regular spans logic =========================================================================
+    public FormatState getFormatState() {
+        return getFormatState(textView.getSelectionStart(), textView.getSelectionEnd());
+    }
 
-    private void setSpan(Spannable text, Class spanClass, int start, int end) {
-        if (start == end) {
-            // Including span's end position
-            final Object[] spans = text.getSpans(start, end, spanClass);
-            //noinspection ForLoopReplaceableByForEach
-            for (int i = 0; i < spans.length; i++) {
-                if (text.getSpanEnd(spans[i]) == end) {
-                    setSpanFlag(text, spans[i], Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
-                }
-            }
-        } else {
-            removeSpan(text, spanClass, start, end);
-
-            if (isSplittableSpan(spanClass)) {
-                // Merging with previous spans
-                final Object[] spansBefore = text.getSpans(start, start, spanClass);
-                //noinspection ForLoopReplaceableByForEach
-                for (int i = 0; i < spansBefore.length; i++) {
-                    start = Math.min(start, text.getSpanStart(spansBefore[i]));
-                    text.removeSpan(spansBefore[i]);
-                }
+    /**
+     * Computes formats applied to given range, same as calling {@link #has(Class, int, int)} for
+     * each format and {@link #getLink(int)} for range start, but in a single pass over the spans.
+     */
+    public FormatState getFormatState(int start, int end) {
+        return getDocument().getFormatState(start, end);
+    }
 
-                // Merging with next spans
-                final Object[] spansAfter = text.getSpans(end, end, spanClass);
-                //noinspection ForLoopReplaceableByForEach
-                for (int i = 0; i < spansAfter.length; i++) {
-                    end = Math.max(end, text.getSpanEnd(spansAfter[i]));
-                    text.removeSpan(spansAfter[i]);
-                }
-            }
+    public void toggle(Class spanClass) {
+        toggle(spanClass, textView.getSelectionStart(), textView.getSelectionEnd());
+    }
 
-            text.setSpan(createSpan(spanClass), start, end, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+    public void toggle(Class spanClass, int start, int end) {
+        beginBatch();
+        try {
+            getDocument().toggle(spanClass, start, end);
+            notifySelectionChanged();
+        } finally {
+            endBatch();
         }
     }
 
-    private void removeSpan(Spannable text, Class spanClass, int start, int end) {
-        if (start == end) {
-            // Excluding span's end position
-            final Object[] spans = text.getSpans(start, end, spanClass);
-            //noinspection ForLoopReplaceableByForEach
-            for (int i = 0; i < spans.length; i++) {
-                if (text.getSpanEnd(spans[i]) == end) {
-                    setSpanFlag(text, spans[i], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-            }
-        } else {
-            final Object[] spans = text.getSpans(start, end, spanClass);
+    /**
+     * Sets format over each of given ranges, given as start and end pairs, e.g. over all search
+     * results. Ranges are applied in a single pass, listeners are notified once and the change
+     * is undone as a single step.
+     */
+    public void set(Class spanClass, int[] ranges) {
+        beginBatch();
+        try {
+            getDocument().set(spanClass, ranges);
+            notifySelectionChanged();
+        } finally {
+            endBatch();
+        }
+    }
 
-            //noinspection ForLoopReplaceableByForEach
-            for (int i = 0; i < spans.length; i++) {
-                final int spanStart = text.getSpanStart(spans[i]);
-                final int spanEnd = text.getSpanEnd(spans[i]);
+    /**
+     * Removes format from each of given ranges, see {@link #set(Class, int[])}.
+     */
+    public void remove(Class spanClass, int[] ranges) {
+        beginBatch();
+        try {
+            getDocument().remove(spanClass, ranges);
+            notifySelectionChanged();
+        } finally {
+            endBatch();
+        }
+    }
 
-                // Removing overlapping style
-                text.removeSpan(spans[i]);
+    /**
+     * Whether format is applied to all of given ranges, including empty ones,
+     * see {@link KnifeDocument#has(Class, int[])}.
+     */
+    public boolean has(Class spanClass, int[] ranges) {
+        return getDocument().has(spanClass, ranges);
+    }
 
-                if (isSplittableSpan(spanClass)) {
-                    // Adding back styles that are left on the sides
-                    if (spanStart < start) {
-                        setSpan(text, spanClass, spanStart, start);
-                    }
-                    if (end < spanEnd) {
-                        setSpan(text, spanClass, end, spanEnd);
-                    }
-                }
-            }
+    /**
+     * Removes format from given ranges if all of them have it, sets it over all of them otherwise.
+     */
+    public void toggle(Class spanClass, int[] ranges) {
+        beginBatch();
+        try {
+            getDocument().toggle(spanClass, ranges);
+            notifySelectionChanged();
+        } finally {
+            endBatch();
         }
     }
 
-    private boolean isFullySpanned(Spannable text, Class spanClass, int start, int end) {
-        final Object[] spans = text.getSpans(start, end, spanClass);
+    public void clearFormat() {
+        beginBatch();
+        try {
+            getDocument().clearFormat(textView.getSelectionStart(), textView.getSelectionEnd());
+            notifySelectionChanged();
+        } finally {
+            endBatch();
+        }
+    }
 
-        if (start == end) {
-            //noinspection ForLoopReplaceableByForEach
-            for (int i = 0; i < spans.length; i++) {
-                final int spanStart = text.getSpanStart(spans[i]);
-                final int spanEnd = text.getSpanEnd(spans[i]);
-                final int spanFlag = text.getSpanFlags(spans[i]);
-                if ((start > spanStart && end < spanEnd)
-                        || (end == spanEnd && spanFlag == Spanned.SPAN_EXCLUSIVE_INCLUSIVE)) {
-                    return true;
-                }
-            }
-            return false;
+    public void setLink(String url, int start, int end) {
+        beginBatch();
+        try {
+            getDocument().setLink(url, start, end);
+            notifySelectionChanged();
+        } finally {
+            endBatch();
         }
+    }
 
-        // Going through each character and checking if there is a span of given type for it
-        for (int pos = start; pos < end; pos++) {
-            boolean found = false;
-            //noinspection ForLoopReplaceableByForEach
-            for (int s = 0; s < spans.length; s++) {
-                if (pos >= text.getSpanStart(spans[s]) && pos < text.getSpanEnd(spans[s])) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                return false;
-            }
+    /**
+     * Merges adjacent and overlapping character spans of the same format (links only if they
+     * have the same URL) and removes empty and duplicated spans.
+     *
+     * @return Number of removed spans
+     */
+    public int compact() {
+        compacting = true;
+        beginBatch();
+        try {
+            return getDocument().compact();
+        } finally {
+            endBatch();
+            compacting = false;
         }
+    }
 
-        return true;
+    /**
+     * Enables automatic {@link #compact()} call once the text is not changed for a while.
+     */
+    public void setAutoCompact(boolean enabled) {
+        autoCompact = enabled;
+        if (!enabled) {
+            textView.removeCallbacks(autoCompactAction);
+        }
     }
 
-    private void toggleSpan(Spannable text, Class spanClass, int start, int end) {
-        if (isFullySpanned(text, spanClass, start, end)) {
-            removeSpan(text, spanClass, start, end);
-        } else {
-            setSpan(text, spanClass, start, end);
+    private void scheduleAutoCompact() {
+        if (autoCompact && !compacting) {
+            textView.removeCallbacks(autoCompactAction);
+            textView.postDelayed(autoCompactAction, AUTO_COMPACT_DELAY);
         }
     }
 
-    private static void setSpanFlag(Spannable text, Object span, int flag) {
-        int spanStart = text.getSpanStart(span);
-        int spanEnd = text.getSpanEnd(span);
-        text.removeSpan(span);
-        text.setSpan(span, spanStart, spanEnd, flag);
+    private void autoCompact() {
+        // Compacting would break redo history, and it should not be done in a middle of a batch
+        if (!autoCompact || history.canRedo() || batchDepth > 0) {
+            return;
+        }
+
+        // Compaction is not a separate undo step, it is undone along with the last changes
+        history.beginAmend();
+        try {
+            compact();
+        } finally {
+            history.endAmend();
+        }
     }
 
-    // Paragraph spans logic =======================================================================
+    // Undo / redo ---------------------------------------------------------------------------------
 
-    private void setParagraph(Spannable text, Class spanClass, int start, int end) {
-        // Getting selection's paragraph bounds
-        start = findLineStart(text, start);
-        end = findLineEnd(text, end);
+    public boolean canUndo() {
+        return history.canUndo();
+    }
 
-        // Adding new span for each line in selection which does not contain same span yet
-        int lineStart = start;
+    public boolean canRedo() {
+        return history.canRedo();
+    }
 
-        while (lineStart < end) {
-            int lineEnd = findLineEnd(text, lineStart);
-            if (!containsSpan(text, spanClass, lineStart, lineEnd) && lineStart != lineEnd) {
-                text.setSpan(createSpan(spanClass),
-                        lineStart, lineEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            lineStart = lineEnd + 1;
-        }
+    public boolean undo() {
+        return applyHistory(true);
     }
 
-    private void removeParagraph(Spannable text, Class spanClass, int start, int end) {
-        // Getting selection's paragraph bounds
-        start = findLineStart(text, start);
-        end = findLineEnd(text, end);
+    public boolean redo() {
+        return applyHistory(false);
+    }
 
-        // Removing spans within the bounds
-        final Object[] spans = text.getSpans(start, end, spanClass);
-        //noinspection ForLoopReplaceableByForEach
-        for (int i = 0; i < spans.length; i++) {
-            text.removeSpan(spans[i]);
-        }
+    public void clearHistory() {
+        history.reset(getText());
     }
 
-    private boolean isFullOfParagraphs(Spannable text, Class spanClass, int start, int end) {
-        // Getting selection's paragraph bounds
-        start = findLineStart(text, start);
-        end = findLineEnd(text, end);
+    /**
+     * Sets approximate memory limit of undo history in bytes, oldest steps are dropped above it.
+     */
+    public void setHistoryMaxSize(int maxSize) {
+        history.setMaxSize(maxSize);
+    }
 
-        if (start == end) {
+    private boolean applyHistory(boolean undo) {
+        if (undo ? !history.canUndo() : !history.canRedo()) {
             return false;
         }
 
-        // Checking each line for paragraph span
-        int lineStart = start;
-
-        while (lineStart <= end) {
-            int lineEnd = findLineEnd(text, lineStart);
-            if (!containsSpan(text, spanClass, lineStart, lineEnd)) {
-                return false;
+        // Fixes made after the changes are not recorded, restored text is already fixed
+        history.pause();
+        beginBatch();
+        try {
+            final Spannable text = getText();
+            final int selection = undo ? history.undo(text) : history.redo(text);
+            if (selection != -1) {
+                Selection.setSelection(text, selection);
             }
-            lineStart = lineEnd + 1;
+        } finally {
+            endBatch();
+            history.resume();
         }
+
         return true;
     }
 
-    private void toggleParagraph(Spannable text, Class spanClass, int start, int end) {
-        if (isFullOfParagraphs(text, spanClass, start, end)) {
-            removeParagraph(text, spanClass, start, end);
-        } else {
-            setParagraph(text, spanClass, start, end);
-        }
+    public Span<String> getLink(int start) {
+        return getDocument().getLink(start);
     }
 
-    private void fixParagraphs(Spannable text, Class spanClass) {
-        final Object[] spans = text.getSpans(0, text.length(), spanClass);
-
-        //noinspection ForLoopReplaceableByForEach
-        for (int i = 0; i < spans.length; i++) {
-            int spanStart = text.getSpanStart(spans[i]);
-            int spanEnd = text.getSpanEnd(spans[i]);
-            int start = findLineStart(text, spanStart);
-            int end = findLineEnd(text, spanEnd);
+    public void setSelectionListener(final OnSelectionChangedListener listener) {
+        selectionListener = listener;
+    }
 
-            if (spanStart == start && spanEnd == end) {
-                continue;
-            }
+    /**
+     * Sets listener which is only notified when formats of the selected text are changed.
+     */
+    public void setFormatListener(final OnFormatChangedListener listener) {
+        formatListener = listener;
+        formatState = null;
+    }
 
-            text.removeSpan(spans[i]);
+    public KnifeStyle getStyle() {
+        return style.current;
+    }
 
-            // Adding new bullets for each line in selection
-            int lineStart = start;
+    /**
+     * Restyles all bullets, quotes and links, e.g. on switching to dark theme. Spans read
+     * the style when drawn, so they are not recreated and the text is not changed.
+     */
+    public void setStyle(KnifeStyle newStyle) {
+        final KnifeStyle oldStyle = style.current;
+        if (oldStyle.equals(newStyle)) {
+            return;
+        }
+        style.current = newStyle;
 
-            while (lineStart < end) {
-                int lineEnd = findLineEnd(text, lineStart);
-                if (!containsSpan(text, spanClass, lineStart, lineEnd) && lineStart != lineEnd) {
-                    text.setSpan(createSpan(spanClass),
-                            lineStart, lineEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-                lineStart = lineEnd;
-            }
+        if (!oldStyle.hasSameLayout(newStyle)) {
+            // Layout only measures paragraph margins again for changed text, so the whole text
+            // is reported as changed with a temporary span
+            final Spannable text = getText();
+            text.setSpan(RELAYOUT_SPAN, 0, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            text.removeSpan(RELAYOUT_SPAN);
+            textView.requestLayout();
         }
+        textView.invalidate();
     }
 
-    // Returns cursor position just after the previous \n or 0
-    private static int findLineStart(CharSequence text, int pos) {
-        if (pos < 0 || pos > text.length()) {
-            return -1;
-        }
-        if (pos == 0) {
-            return 0;
-        }
-        for (int i = pos - 1; i >= 0; i--) {
-            if (text.charAt(i) == '\n') {
-                return i + 1;
+    // Spans classes ===============================================================================
+
+    private void clearNonKnifeStyles(Spannable text, int start, int end) {
+        final Object[] spans = text.getSpans(start, end, ParcelableSpan.class);
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            if (!KnifeDocument.isKnifeSpan(spans[i])) {
+                text.removeSpan(spans[i]);
             }
         }
-        return 0;
     }
 
-    // Returns cursor position just before the next \n or text length
-    private static int findLineEnd(CharSequence text, int pos) {
-        if (pos < 0 || pos > text.length()) {
-            return -1;
-        }
-        if (pos == text.length()) {
-            return text.length();
-        }
-        for (int i = pos; i < text.length(); i++) {
-            if (text.charAt(i) == '\n') {
-                return i;
-            }
-        }
-        return text.length();
+    private Object createSpan(Class spanClass, String url) {
+        return createSpan(spanClass, url, style);
     }
 
-    private static boolean containsSpan(Spanned text, Class spanClass, int start, int end) {
-        return text.getSpans(start, end, spanClass).length > 0;
+    // Document asks for spans of built-in formats by their interfaces, e.g. KnifeDocument.BOLD.
+    // Spans of custom formats are created by factories registered with SpanType.
+    static Object createSpan(Class spanClass, String url, KnifeStyleProvider style) {
+        if (spanClass == KnifeDocument.BOLD) {
+            return new KnifeBoldSpan();
+        } else if (spanClass == KnifeDocument.ITALIC) {
+            return new KnifeItalicSpan();
+        } else if (spanClass == KnifeDocument.UNDERLINE) {
+            return new KnifeUnderlineSpan();
+        } else if (spanClass == KnifeDocument.STRIKE) {
+            return new KnifeStrikethroughSpan();
+        } else if (spanClass == KnifeDocument.BULLET) {
+            return new KnifeBulletSpan(style);
+        } else if (spanClass == KnifeDocument.QUOTE) {
+            return new KnifeQuoteSpan(style);
+        } else if (spanClass == KnifeDocument.URL) {
+            return new KnifeURLSpan(url, style);
+        } else {
+            throw new IllegalArgumentException("Unknown span type: " + spanClass.getSimpleName());
+        }
     }
 
 
@@ -632,4 +877,14 @@ public class Knife {
         void onSelectionChanged();
     }
 
+    public interface OnFormatChangedListener {
+        void onFormatChanged(FormatState state);
+    }
+
+    public interface OnLoadedListener {
+        void onLoaded();
+
+        void onLoadFailed(RuntimeException e);
+    }
+
 }
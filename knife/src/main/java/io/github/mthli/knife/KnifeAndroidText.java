@@ -0,0 +1,161 @@
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+/**
+ * Exposes Android {@link Spannable} to {@link KnifeDocument}. Text editing methods are only
+ * supported if the wrapped text is {@link Editable}.
+ */
+class KnifeAndroidText implements KnifeEditable, KnifeLineIndex.Provider {
+
+    private final Spannable text;
+    private LineWatcher lineWatcher;
+
+    KnifeAndroidText(Spannable text) {
+        this.text = text;
+    }
+
+    Spannable getText() {
+        return text;
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    @Override
+    public KnifeLineIndex getLineIndex() {
+        // Watcher can be removed along with all other spans, e.g. with Editable.clearSpans()
+        if (lineWatcher == null || text.getSpanStart(lineWatcher) == -1) {
+            lineWatcher = LineWatcher.attach(text);
+        }
+        return lineWatcher.index;
+    }
+
+    @Override
+    public <T> T[] getSpans(int start, int end, Class<T> type) {
+        return text.getSpans(start, end, type);
+    }
+
+    @Override
+    public int getSpanStart(Object span) {
+        return text.getSpanStart(span);
+    }
+
+    @Override
+    public int getSpanEnd(Object span) {
+        return text.getSpanEnd(span);
+    }
+
+    @Override
+    public int getSpanFlags(Object span) {
+        return text.getSpanFlags(span);
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class type) {
+        return text.nextSpanTransition(start, limit, type);
+    }
+
+    @Override
+    public void setSpan(Object span, int start, int end, int flags) {
+        text.setSpan(span, start, end, flags);
+    }
+
+    @Override
+    public void removeSpan(Object span) {
+        text.removeSpan(span);
+    }
+
+    @Override
+    public KnifeAndroidText replace(int start, int end, CharSequence source) {
+        ((Editable) text).replace(start, end, unwrap(source));
+        return this;
+    }
+
+    @Override
+    public KnifeAndroidText insert(int where, CharSequence source) {
+        ((Editable) text).insert(where, unwrap(source));
+        return this;
+    }
+
+    @Override
+    public KnifeAndroidText delete(int start, int end) {
+        ((Editable) text).delete(start, end);
+        return this;
+    }
+
+    @Override
+    public KnifeAndroidText append(CharSequence source) {
+        ((Editable) text).append(unwrap(source));
+        return this;
+    }
+
+    @Override
+    public KnifeAndroidText append(char c) {
+        ((Editable) text).append(c);
+        return this;
+    }
+
+    // Spans are only copied by Android from its own spanned text
+    private static CharSequence unwrap(CharSequence source) {
+        return source instanceof KnifeAndroidText ? ((KnifeAndroidText) source).text : source;
+    }
+
+
+    // Updates line index on any change of the text it is attached to. Not copied along with the
+    // text and notified before other watchers, same as TextView's own watcher.
+    private static class LineWatcher implements TextWatcher, NoCopySpan {
+        final KnifeLineIndex index;
+
+        private LineWatcher(KnifeLineIndex index) {
+            this.index = index;
+        }
+
+        static LineWatcher attach(Spannable text) {
+            final LineWatcher[] attached = text.getSpans(0, text.length(), LineWatcher.class);
+            if (attached.length > 0) {
+                return attached[0];
+            }
+
+            final LineWatcher watcher = new LineWatcher(new KnifeLineIndex(text));
+            // Text which is not editable cannot change, but the watcher is still attached
+            // to be found by other wrappers of the same text
+            text.setSpan(watcher, 0, text.length(),
+                    Spanned.SPAN_INCLUSIVE_INCLUSIVE | Spanned.SPAN_PRIORITY);
+            return watcher;
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence text, int start, int count, int after) {}
+
+        @Override
+        public void onTextChanged(CharSequence text, int start, int before, int count) {
+            index.replace(start, before, text, start, start + count);
+        }
+
+        @Override
+        public void afterTextChanged(Editable text) {}
+    }
+
+}
@@ -0,0 +1,343 @@
+package io.github.mthli.knife;
+
+import android.os.SystemClock;
+import android.view.View;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Saves HTML of the text into a file once it is changed, started with {@link Knife#startAutosave}.
+ * <p>
+ * Bursts of changes are saved once, when the text is not changed for a {@link #setDelay delay}
+ * but no later than a max delay after the first unsaved change. HTML is written on the executor
+ * from a {@link KnifeSnapshot} into a temp file, which then replaces the target file, so that
+ * the file always contains a complete save. Methods should be called on main thread.
+ * <p>
+ * Only writing is done in background, taking the snapshot copies the whole text and its spans
+ * on main thread once per save, in time linear in the length of the text. Delays of long texts
+ * should be long enough for this copy not to stall typing.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
+public class KnifeAutosave {
+
+    private static final long DEFAULT_DELAY = 1000L;
+    private static final long DEFAULT_MAX_DELAY = 5000L;
+
+    private final Knife knife;
+    private final View view;
+    private final File file;
+    private final Executor executor;
+
+    private long delay = DEFAULT_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private OnSaveListener listener;
+
+    // Changes are counted so that changes made while saving are not marked as saved
+    private int changes;
+    private int savedChanges;
+    private long firstChangeTime = -1L; // Of changes not included into a save yet
+    private long lastChangeTime;
+    private long postedSaveTime = -1L; // When the posted save action runs, -1 if not posted
+    private boolean saving;
+    private boolean saveRequested; // Without waiting for the delay
+    private boolean stopped;
+
+    private int saveCount;
+    private long lastSaveDuration;
+    private long lastSaveLatency;
+    private long lastBytesWritten;
+    private long totalBytesWritten;
+
+    private final Runnable saveAction = new Runnable() {
+        @Override
+        public void run() {
+            // Changes made since the action was posted only move the save later
+            postedSaveTime = -1L;
+            final long wait = getSaveWait();
+            if (wait > 0L) {
+                postSave(wait);
+            } else {
+                save();
+            }
+        }
+    };
+
+    KnifeAutosave(Knife knife, View view, File file, Executor executor) {
+        this.knife = knife;
+        this.view = view;
+        this.file = file;
+        this.executor = executor;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets time in ms without changes after which the text is saved, and max time in ms
+     * the text can stay unsaved while it is being changed continuously.
+     */
+    public void setDelay(long delay, long maxDelay) {
+        this.delay = delay;
+        this.maxDelay = Math.max(delay, maxDelay);
+    }
+
+    public void setListener(OnSaveListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Whether there are changes which are not saved yet.
+     */
+    public boolean isDirty() {
+        return changes != savedChanges;
+    }
+
+    public boolean isSaving() {
+        return saving;
+    }
+
+    /**
+     * Saves unsaved changes without waiting for the delay, e.g. when the screen is paused.
+     * If a save is already in progress, changes made after it started are saved once it is done.
+     */
+    public void saveNow() {
+        if (isDirty() && !stopped) {
+            saveRequested = true;
+            cancelSave();
+            save();
+        }
+    }
+
+    // Metrics =====================================================================================
+
+    public int getSaveCount() {
+        return saveCount;
+    }
+
+    /**
+     * Returns time in ms spent on converting the text and writing the file during the last save.
+     */
+    public long getLastSaveDuration() {
+        return lastSaveDuration;
+    }
+
+    /**
+     * Returns time in ms between the first change included into the last save and the end
+     * of the save.
+     */
+    public long getLastSaveLatency() {
+        return lastSaveLatency;
+    }
+
+    public long getLastBytesWritten() {
+        return lastBytesWritten;
+    }
+
+    public long getTotalBytesWritten() {
+        return totalBytesWritten;
+    }
+
+    // Saving ======================================================================================
+
+    // Called by Knife on any change of the text or of its Knife spans
+    void onChanged() {
+        if (stopped) {
+            return;
+        }
+        changes++;
+        lastChangeTime = SystemClock.uptimeMillis();
+        if (firstChangeTime == -1L) {
+            firstChangeTime = lastChangeTime;
+        }
+        scheduleSave();
+    }
+
+    // Save in progress is finished, but no new saves are started afterwards
+    void stop() {
+        stopped = true;
+        cancelSave();
+    }
+
+    private void scheduleSave() {
+        if (saving) {
+            return; // Rescheduled once the current save is done
+        }
+        final long wait = Math.max(0L, getSaveWait());
+        // Posted action is kept unless it runs too late, e.g. once a save is requested, so that
+        // changes within a burst do not repost it on each keystroke
+        if (postedSaveTime != -1L && postedSaveTime <= SystemClock.uptimeMillis() + wait) {
+            return;
+        }
+        cancelSave();
+        postSave(wait);
+    }
+
+    // Returns time left until the save is due, which can be negative
+    private long getSaveWait() {
+        if (saveRequested) {
+            return 0L;
+        }
+        final long saveTime = Math.min(lastChangeTime + delay, firstChangeTime + maxDelay);
+        return saveTime - SystemClock.uptimeMillis();
+    }
+
+    private void postSave(long wait) {
+        postedSaveTime = SystemClock.uptimeMillis() + wait;
+        view.postDelayed(saveAction, wait);
+    }
+
+    private void cancelSave() {
+        if (postedSaveTime != -1L) {
+            postedSaveTime = -1L;
+            view.removeCallbacks(saveAction);
+        }
+    }
+
+    private void save() {
+        if (!isDirty() || saving || stopped) {
+            return;
+        }
+
+        saving = true;
+        saveRequested = false;
+        final int saveChanges = changes;
+        final long changeTime = firstChangeTime;
+        firstChangeTime = -1L;
+
+        final KnifeSnapshot snapshot = knife.snapshot();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = SystemClock.uptimeMillis();
+                    long bytes = 0L;
+                    Exception error = null;
+                    try {
+                        bytes = write(snapshot);
+                    } catch (IOException | RuntimeException e) {
+                        error = e;
+                    }
+                    final long end = SystemClock.uptimeMillis();
+
+                    final long bytesWritten = bytes;
+                    final Exception saveError = error;
+                    view.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSaved(saveChanges, changeTime, end - start, bytesWritten,
+                                    saveError);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            onSaved(saveChanges, changeTime, 0L, 0L, e); // E.g. executor is shut down
+        }
+    }
+
+    private void onSaved(int saveChanges, long changeTime, long duration, long bytes,
+            Exception error) {
+        saving = false;
+
+        if (error == null) {
+            savedChanges = saveChanges;
+            saveCount++;
+            lastSaveDuration = duration;
+            lastSaveLatency = SystemClock.uptimeMillis() - changeTime;
+            lastBytesWritten = bytes;
+            totalBytesWritten += bytes;
+        } else if (firstChangeTime == -1L || changeTime < firstChangeTime) {
+            firstChangeTime = changeTime; // Failed changes are still unsaved
+        }
+
+        if (listener != null) {
+            if (error == null) {
+                listener.onSaved(this);
+            } else {
+                listener.onSaveFailed(this, error);
+            }
+        }
+
+        // Failed save is only retried on next change or explicit saveNow() call
+        if (isDirty() && !stopped
+                && (error == null || changes != saveChanges || saveRequested)) {
+            scheduleSave();
+        } else {
+            saveRequested = false;
+        }
+    }
+
+    // Writes into a temp file in the same folder and then renames it, returns bytes written
+    private long write(KnifeSnapshot snapshot) throws IOException {
+        // Temp file should be on the same file system for the rename to replace the file at once
+        final File temp = File.createTempFile("." + file.getName() + ".", ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        boolean renamed = false;
+        try {
+            final FileOutputStream stream = new FileOutputStream(temp);
+            final CountingStream counter = new CountingStream(stream);
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(counter, "UTF-8"));
+            try {
+                snapshot.writeHtml(writer);
+                writer.flush();
+                stream.getFD().sync();
+            } finally {
+                writer.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            }
+            renamed = true;
+            return counter.count;
+        } finally {
+            if (!renamed) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+
+
+    private static class CountingStream extends FilterOutputStream {
+        long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+
+    public interface OnSaveListener {
+        void onSaved(KnifeAutosave autosave);
+
+        /**
+         * Called if the file cannot be written or the executor rejected the save.
+         */
+        void onSaveFailed(KnifeAutosave autosave, Exception e);
+    }
+
+}
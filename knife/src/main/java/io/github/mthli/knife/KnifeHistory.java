@@ -0,0 +1,476 @@
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.Spanned;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Undo and redo history. Text changes and changes of Knife spans are recorded as operations,
+ * so that undoing or redoing a step only costs as much as the step itself.
+ */
+class KnifeHistory {
+
+    static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    // Approximate memory taken by operations, in bytes
+    private static final int OP_SIZE = 48;
+    private static final int SNAPSHOT_SPAN_SIZE = 16;
+
+    private final ArrayDeque<Step> undoSteps = new ArrayDeque<>();
+    private final ArrayDeque<Step> redoSteps = new ArrayDeque<>();
+    private int size;
+    private int maxSize = DEFAULT_MAX_SIZE;
+
+    private Spanned document;
+    private int depth;
+    private Step step; // Step being recorded, if any
+    private Step typingStep; // Last step which can be continued by typing
+    private int paused;
+    private boolean amendPaused;
+
+    // Text change which is being made
+    private boolean inTextChange;
+    private CharSequence changedText;
+    private String removed;
+    private Snapshot removedSpans;
+
+    // Flags of the document's Knife spans which differ from the default ones
+    private final Map<Object, Integer> flags = new IdentityHashMap<>();
+
+    void reset(Spanned text) {
+        document = text;
+        undoSteps.clear();
+        redoSteps.clear();
+        size = 0;
+        step = null;
+        typingStep = null;
+        flags.clear();
+
+        final Object[] spans = text.getSpans(0, text.length(), Object.class);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < spans.length; i++) {
+            trackFlags(text, spans[i]);
+        }
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    boolean canUndo() {
+        return !undoSteps.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !redoSteps.isEmpty();
+    }
+
+    // Changes made while paused are not recorded
+    void pause() {
+        paused++;
+    }
+
+    void resume() {
+        paused--;
+    }
+
+    // All changes made until the matching endStep() call are undone as one step
+    void beginStep() {
+        depth++;
+    }
+
+    void endStep() {
+        if (--depth == 0) {
+            step = null;
+            trim();
+        }
+    }
+
+    // Changes until the matching endAmend() call are added to the last step
+    void beginAmend() {
+        beginStep();
+        if (depth == 1) {
+            step = undoSteps.peekLast();
+        }
+
+        // Nothing to add changes to, there is nothing to undo before them either
+        amendPaused = step == null;
+        if (amendPaused) {
+            pause();
+        }
+    }
+
+    void endAmend() {
+        if (amendPaused) {
+            amendPaused = false;
+            resume();
+        }
+        endStep();
+    }
+
+    // Text watcher ================================================================================
+
+    void beforeTextChanged(CharSequence text, int start, int count) {
+        inTextChange = true;
+        changedText = text;
+
+        if (paused == 0 && text == document) {
+            removed = text.subSequence(start, start + count).toString();
+            removedSpans = Snapshot.take(document, start, start + count);
+        }
+    }
+
+    void onTextChanged(CharSequence text, int start, int before, int count) {
+        inTextChange = false;
+        beginStep();
+
+        if (text != changedText || text != document) {
+            // Text is replaced with a new object, there is nothing to undo in it
+            if (text instanceof Spanned) {
+                reset((Spanned) text);
+            }
+        } else if (paused == 0) {
+            final TextOp op = new TextOp(start, removed,
+                    text.subSequence(start, start + count).toString(),
+                    removedSpans, Snapshot.take(document, start, start + count));
+
+            if (depth == 1 && (typingStep == null || !typingStep.canContinue(op))) {
+                typingStep = null;
+            }
+            if (depth == 1 && typingStep != null) {
+                step = typingStep; // Typing is merged into one step
+            }
+
+            add(op);
+
+            if (depth == 1 && op.isTyping()) {
+                typingStep = step;
+            }
+        }
+
+        changedText = null;
+        removed = null;
+        removedSpans = null;
+    }
+
+    void afterTextChanged() {
+        endStep();
+    }
+
+    // Span watcher ================================================================================
+
+    void onSpanAdded(Spannable text, Object what, int start, int end) {
+        if (text != document || !KnifeDocument.isKnifeSpan(what)) {
+            return;
+        }
+
+        trackFlags(text, what);
+
+        if (paused == 0 && !inTextChange) {
+            addSpanOp(new SpanOp(true, what, start, end, text.getSpanFlags(what)));
+        }
+    }
+
+    void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        if (text != document || !KnifeDocument.isKnifeSpan(what)) {
+            return;
+        }
+
+        final Integer spanFlags = flags.remove(what);
+
+        // Spans removed by text changes are restored together with the text
+        if (paused == 0 && !inTextChange) {
+            addSpanOp(new SpanOp(false, what, start, end,
+                    spanFlags == null ? KnifeDocument.getDefaultFlags(what) : spanFlags));
+        }
+    }
+
+    private void trackFlags(Spanned text, Object span) {
+        if (KnifeDocument.isKnifeSpan(span)) {
+            final int spanFlags = text.getSpanFlags(span);
+            if (spanFlags == KnifeDocument.getDefaultFlags(span)) {
+                flags.remove(span);
+            } else {
+                flags.put(span, spanFlags);
+            }
+        }
+    }
+
+    private void addSpanOp(SpanOp op) {
+        beginStep();
+        add(op);
+        endStep();
+    }
+
+    private void add(Op op) {
+        if (!redoSteps.isEmpty()) {
+            for (Step redo : redoSteps) {
+                size -= redo.size;
+            }
+            redoSteps.clear();
+        }
+
+        if (step == null) {
+            step = new Step();
+            undoSteps.addLast(step);
+            typingStep = null;
+        }
+
+        step.ops.add(op);
+        step.size += op.size();
+        size += op.size();
+    }
+
+    // Dropping the oldest steps, the step being recorded is kept
+    private void trim() {
+        while (size > maxSize && !undoSteps.isEmpty() && undoSteps.peekFirst() != step) {
+            final Step dropped = undoSteps.pollFirst();
+            size -= dropped.size;
+            if (dropped == typingStep) {
+                typingStep = null;
+            }
+        }
+        while (size > maxSize && !redoSteps.isEmpty()) {
+            size -= redoSteps.pollFirst().size;
+        }
+    }
+
+    // Undo / redo =================================================================================
+
+    // Returns cursor position after the step or -1
+    int undo(Spannable text) {
+        final Step undone = undoSteps.pollLast();
+        if (undone == null) {
+            return -1;
+        }
+
+        int selection = -1;
+        pause();
+        try {
+            final List<Op> ops = undone.ops;
+            for (int i = ops.size() - 1; i >= 0; i--) {
+                final Op op = ops.get(i);
+                op.undo(text);
+
+                if (op instanceof TextOp) {
+                    final TextOp textOp = (TextOp) op;
+                    selection = textOp.start + textOp.removed.length();
+                }
+            }
+        } finally {
+            resume();
+        }
+
+        redoSteps.addLast(undone);
+        step = null;
+        typingStep = null;
+        return selection;
+    }
+
+    // Returns cursor position after the step or -1
+    int redo(Spannable text) {
+        final Step redone = redoSteps.pollLast();
+        if (redone == null) {
+            return -1;
+        }
+
+        int selection = -1;
+        pause();
+        try {
+            final List<Op> ops = redone.ops;
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < ops.size(); i++) {
+                final Op op = ops.get(i);
+                op.redo(text);
+
+                if (op instanceof TextOp) {
+                    final TextOp textOp = (TextOp) op;
+                    selection = textOp.start + textOp.inserted.length();
+                }
+            }
+        } finally {
+            resume();
+        }
+
+        undoSteps.addLast(redone);
+        step = null;
+        typingStep = null;
+        return selection;
+    }
+
+
+    private static class Step {
+        final List<Op> ops = new ArrayList<>();
+        int size;
+
+        // Typing continues the step if it touches the text typed in the step
+        boolean canContinue(TextOp op) {
+            final Op last = ops.get(ops.size() - 1);
+            if (!(last instanceof TextOp) || !op.isTyping()) {
+                return false;
+            }
+
+            final TextOp lastText = (TextOp) last;
+            return op.start <= lastText.start + lastText.inserted.length()
+                    && op.start + op.removed.length() >= lastText.start;
+        }
+    }
+
+    private abstract static class Op {
+        abstract void undo(Spannable text);
+
+        abstract void redo(Spannable text);
+
+        abstract int size();
+    }
+
+    private static class SpanOp extends Op {
+        private final boolean added;
+        private final Object span;
+        private final int start;
+        private final int end;
+        private final int flags;
+
+        SpanOp(boolean added, Object span, int start, int end, int flags) {
+            this.added = added;
+            this.span = span;
+            this.start = start;
+            this.end = end;
+            this.flags = flags;
+        }
+
+        @Override
+        void undo(Spannable text) {
+            apply(text, !added);
+        }
+
+        @Override
+        void redo(Spannable text) {
+            apply(text, added);
+        }
+
+        private void apply(Spannable text, boolean add) {
+            if (!add) {
+                text.removeSpan(span);
+            } else if (end <= text.length()) {
+                text.setSpan(span, start, end, flags);
+            }
+        }
+
+        @Override
+        int size() {
+            return OP_SIZE;
+        }
+    }
+
+    // Replacement of removed text with inserted one at start position
+    private static class TextOp extends Op {
+        private final int start;
+        private final String removed;
+        private final String inserted;
+        private final Snapshot removedSpans;
+        private final Snapshot insertedSpans;
+
+        TextOp(int start, String removed, String inserted,
+                Snapshot removedSpans, Snapshot insertedSpans) {
+            this.start = start;
+            this.removed = removed;
+            this.inserted = inserted;
+            this.removedSpans = removedSpans;
+            this.insertedSpans = insertedSpans;
+        }
+
+        boolean isTyping() {
+            return removed.length() + inserted.length() > 0
+                    && removed.indexOf('\n') == -1 && inserted.indexOf('\n') == -1;
+        }
+
+        @Override
+        void undo(Spannable text) {
+            final int end = Math.min(start + inserted.length(), text.length());
+            ((Editable) text).replace(start, end, removed);
+            removedSpans.restore(text, insertedSpans);
+        }
+
+        @Override
+        void redo(Spannable text) {
+            final int end = Math.min(start + removed.length(), text.length());
+            ((Editable) text).replace(start, end, inserted);
+            insertedSpans.restore(text, removedSpans);
+        }
+
+        @Override
+        int size() {
+            return OP_SIZE + 2 * (removed.length() + inserted.length())
+                    + SNAPSHOT_SPAN_SIZE * (removedSpans.spans.length + insertedSpans.spans.length);
+        }
+    }
+
+    // Knife spans touching a text range, with their bounds and flags
+    private static class Snapshot {
+        private final Object[] spans;
+        private final int[] data;
+
+        private Snapshot(Object[] spans, int[] data) {
+            this.spans = spans;
+            this.data = data;
+        }
+
+        // Spans touching the range are included too, whether the range is empty or not
+        static Snapshot take(Spanned text, int start, int end) {
+            final Object[] all = text.getSpans(Math.max(start - 1, 0),
+                    Math.min(end + 1, text.length()), Object.class);
+
+            int count = 0;
+            for (int i = 0; i < all.length; i++) {
+                if (KnifeDocument.isKnifeSpan(all[i])
+                        && text.getSpanStart(all[i]) <= end && text.getSpanEnd(all[i]) >= start) {
+                    all[count++] = all[i];
+                }
+            }
+
+            final Object[] spans = new Object[count];
+            final int[] data = new int[count * 3];
+
+            for (int i = 0; i < count; i++) {
+                spans[i] = all[i];
+                data[i * 3] = text.getSpanStart(all[i]);
+                data[i * 3 + 1] = text.getSpanEnd(all[i]);
+                data[i * 3 + 2] = text.getSpanFlags(all[i]);
+            }
+
+            return new Snapshot(spans, data);
+        }
+
+        // Puts spans back to the bounds they had, removing ones which only exist in other snapshot
+        void restore(Spannable text, Snapshot other) {
+            final Map<Object, Boolean> own = new IdentityHashMap<>(spans.length);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < spans.length; i++) {
+                own.put(spans[i], Boolean.TRUE);
+            }
+
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < other.spans.length; i++) {
+                if (!own.containsKey(other.spans[i])) {
+                    text.removeSpan(other.spans[i]);
+                }
+            }
+
+            final int length = text.length();
+            for (int i = 0; i < spans.length; i++) {
+                if (data[i * 3 + 1] <= length) {
+                    text.setSpan(spans[i], data[i * 3], data[i * 3 + 1], data[i * 3 + 2]);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package io.github.mthli.knife;
+
+/**
+ * Handle of HTML loading started with {@link Knife#setHtmlAsync}.
+ */
+public class KnifeLoadTask {
+
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    private volatile RuntimeException error;
+
+    KnifeLoadTask() {}
+
+    /**
+     * Cancels loading. When called from main thread the text is guaranteed to stay unchanged.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Whether the loaded text is already set into the text view.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns error thrown while parsing HTML, or null if loading is not failed (yet).
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+
+    void setDone() {
+        done = true;
+    }
+
+    void setFailed(RuntimeException error) {
+        this.error = error;
+    }
+
+}
@@ -0,0 +1,208 @@
+package io.github.mthli.knife;
+
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Converts HTML into read-only styled text for displaying, e.g. in list rows, without creating
+ * {@link Knife} editors. Texts are cached by their HTML, so that each HTML is parsed once while
+ * it stays in the cache, and can be parsed ahead of time on a background executor with
+ * {@link #prefetch}.
+ * <p>
+ * Texts are immutable and can be shown by any number of text views at once.
+ * Rendering and prefetching can be done from any thread.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
+public class KnifeRenderer {
+
+    private static final int DEFAULT_MAX_SIZE = 1024 * 1024; // chars
+
+    private final KnifeStyle.Holder style = new KnifeStyle.Holder();
+
+    private final KnifeSpan.Factory spanFactory = new KnifeSpan.Factory() {
+        @Override
+        public Object createSpan(Class spanClass, String url) {
+            return Knife.createSpan(spanClass, url, style);
+        }
+    };
+
+    private final LruCache<String, Spanned> cache;
+    private final Set<String> prefetching = new HashSet<>();
+
+    public KnifeRenderer(KnifeStyle style) {
+        this(style, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize Max total length of cached HTML and texts in chars
+     */
+    public KnifeRenderer(KnifeStyle style, int maxSize) {
+        this.style.current = style;
+        cache = new LruCache<String, Spanned>(maxSize) {
+            @Override
+            protected int sizeOf(String html, Spanned text) {
+                return html.length() + text.length();
+            }
+        };
+    }
+
+    public KnifeStyle getStyle() {
+        return style.current;
+    }
+
+    /**
+     * Restyles all texts returned by this renderer, including cached ones. Text views showing
+     * them should be invalidated. Should be called on main thread.
+     */
+    public void setStyle(KnifeStyle style) {
+        this.style.current = style;
+    }
+
+    /**
+     * Returns styled text of given HTML, it is only parsed if it is not cached yet.
+     */
+    public Spanned render(String html) {
+        final Spanned cached = cache.get(html);
+        return cached != null ? cached : put(html, parse(html));
+    }
+
+    /**
+     * Returns cached text of given HTML, or null if it is not parsed yet.
+     */
+    public Spanned getCached(String html) {
+        return cache.get(html);
+    }
+
+    /**
+     * Parses given HTML on the executor unless it is already cached or being parsed,
+     * e.g. for list rows about to be scrolled into view.
+     */
+    public void prefetch(String html, Executor executor) {
+        prefetch(Collections.singletonList(html), executor);
+    }
+
+    /**
+     * Parses all given HTML on the executor in a single task, skipping already cached ones.
+     */
+    public void prefetch(Iterable<String> htmls, Executor executor) {
+        final List<String> pending = new ArrayList<>();
+        synchronized (prefetching) {
+            for (String html : htmls) {
+                if (cache.get(html) == null && prefetching.add(html)) {
+                    pending.add(html);
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //noinspection ForLoopReplaceableByForEach
+                for (int i = 0; i < pending.size(); i++) {
+                    final String html = pending.get(i);
+                    try {
+                        // Might be rendered already while waiting for the executor
+                        if (cache.get(html) == null) {
+                            put(html, parse(html));
+                        }
+                    } finally {
+                        synchronized (prefetching) {
+                            prefetching.remove(html);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public void clear() {
+        cache.evictAll();
+    }
+
+    // Keeps already cached text if the same HTML was parsed concurrently
+    private Spanned put(String html, Spanned text) {
+        synchronized (cache) {
+            final Spanned cached = cache.get(html);
+            if (cached != null) {
+                return cached;
+            }
+            cache.put(html, text);
+            return text;
+        }
+    }
+
+    // Parses into a plain text without watchers, which is then copied into platform text
+    // which text views keep as is
+    private Spanned parse(String html) {
+        final KnifeSpannableBuilder text = new KnifeSpannableBuilder();
+        KnifeParser.fromHtml(html, spanFactory, text);
+        return new SpannedString(new PlatformSpanned(text));
+    }
+
+
+    // Exposes Knife text to platform text classes, to be copied by them
+    private static class PlatformSpanned implements Spanned {
+        private final KnifeSpanned text;
+
+        PlatformSpanned(KnifeSpanned text) {
+            this.text = text;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+
+        @Override
+        public <T> T[] getSpans(int start, int end, Class<T> type) {
+            return text.getSpans(start, end, type);
+        }
+
+        @Override
+        public int getSpanStart(Object span) {
+            return text.getSpanStart(span);
+        }
+
+        @Override
+        public int getSpanEnd(Object span) {
+            return text.getSpanEnd(span);
+        }
+
+        @Override
+        public int getSpanFlags(Object span) {
+            return text.getSpanFlags(span);
+        }
+
+        @Override
+        public int nextSpanTransition(int start, int limit, Class type) {
+            return text.nextSpanTransition(start, limit, type);
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package io.github.mthli.knife;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Color;
+import android.util.TypedValue;
+
+/**
+ * Colors and sizes of bullets, quotes and links. Style is immutable, so that a single instance
+ * can be shared by many editors, e.g. {@code new Knife(textView, style)}.
+ * <p>
+ * Spans do not copy the style but read it from {@link KnifeStyleProvider} on each draw, so that
+ * {@link Knife#setStyle(KnifeStyle)} restyles all existing spans at once, e.g. on switching
+ * to dark theme.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" }) // Public API
+public final class KnifeStyle implements KnifeStyleProvider {
+
+    /**
+     * Style with zero colors and sizes, to be set up with {@code with...()} methods.
+     */
+    public static final KnifeStyle EMPTY = new KnifeStyle(0, 0, 0, 0, true, 0, 0, 0);
+
+    private static final int DEFAULT_BULLET_RADIUS = 2; // dp
+    private static final int DEFAULT_BULLET_GAP = 8; // dp
+    private static final int DEFAULT_QUOTE_STRIPE_WIDTH = 2; // dp
+    private static final int DEFAULT_QUOTE_GAP = 8; // dp
+
+    private final int bulletColor;
+    private final int bulletRadius;
+    private final int bulletGap;
+    private final int linkColor; // 0 to use textColorLink XML attribute
+    private final boolean linkUnderline;
+    private final int quoteColor;
+    private final int quoteStripeWidth;
+    private final int quoteGap;
+
+    private KnifeStyle(int bulletColor, int bulletRadius, int bulletGap,
+            int linkColor, boolean linkUnderline,
+            int quoteColor, int quoteStripeWidth, int quoteGap) {
+        this.bulletColor = bulletColor;
+        this.bulletRadius = bulletRadius;
+        this.bulletGap = bulletGap;
+        this.linkColor = linkColor;
+        this.linkUnderline = linkUnderline;
+        this.quoteColor = quoteColor;
+        this.quoteStripeWidth = quoteStripeWidth;
+        this.quoteGap = quoteGap;
+    }
+
+    /**
+     * Reads style from {@code knife_*} attributes of the context theme, see README.
+     * Style should be read once and shared rather than read for each editor.
+     */
+    public static KnifeStyle fromTheme(Context context) {
+        return fromAttributes(context, context.obtainStyledAttributes(null, R.styleable.Knife));
+    }
+
+    /**
+     * Reads style from {@code knife_*} attributes of given style resource, e.g. of a dark theme.
+     */
+    public static KnifeStyle fromTheme(Context context, int styleRes) {
+        return fromAttributes(context, context.obtainStyledAttributes(styleRes, R.styleable.Knife));
+    }
+
+    private static KnifeStyle fromAttributes(Context context, TypedArray arr) {
+        try {
+            return new KnifeStyle(
+                    arr.getColor(R.styleable.Knife_knife_bulletColor, Color.BLUE),
+                    arr.getDimensionPixelSize(R.styleable.Knife_knife_bulletRadius,
+                            convertDpToPixels(context, DEFAULT_BULLET_RADIUS)),
+                    arr.getDimensionPixelSize(R.styleable.Knife_knife_bulletGap,
+                            convertDpToPixels(context, DEFAULT_BULLET_GAP)),
+                    arr.getColor(R.styleable.Knife_knife_linkColor, 0),
+                    arr.getBoolean(R.styleable.Knife_knife_linkUnderline, true),
+                    arr.getColor(R.styleable.Knife_knife_quoteColor, 0),
+                    arr.getDimensionPixelSize(R.styleable.Knife_knife_quoteStripeWidth,
+                            convertDpToPixels(context, DEFAULT_QUOTE_STRIPE_WIDTH)),
+                    arr.getDimensionPixelSize(R.styleable.Knife_knife_quoteGap,
+                            convertDpToPixels(context, DEFAULT_QUOTE_GAP)));
+        } finally {
+            arr.recycle();
+        }
+    }
+
+    private static int convertDpToPixels(Context context, int value) {
+        return Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, value,
+                context.getResources().getDisplayMetrics()));
+    }
+
+    /**
+     * Returns copy of this style with given bullet color and sizes in pixels.
+     */
+    public KnifeStyle withBullet(int color, int radius, int gap) {
+        return new KnifeStyle(color, radius, gap, linkColor, linkUnderline,
+                quoteColor, quoteStripeWidth, quoteGap);
+    }
+
+    /**
+     * Returns copy of this style with given link color, 0 to use textColorLink XML attribute.
+     */
+    public KnifeStyle withLink(int color, boolean underline) {
+        return new KnifeStyle(bulletColor, bulletRadius, bulletGap, color, underline,
+                quoteColor, quoteStripeWidth, quoteGap);
+    }
+
+    /**
+     * Returns copy of this style with given quote color and sizes in pixels.
+     */
+    public KnifeStyle withQuote(int color, int stripeWidth, int gap) {
+        return new KnifeStyle(bulletColor, bulletRadius, bulletGap, linkColor, linkUnderline,
+                color, stripeWidth, gap);
+    }
+
+    public int getBulletColor() {
+        return bulletColor;
+    }
+
+    public int getBulletRadius() {
+        return bulletRadius;
+    }
+
+    public int getBulletGap() {
+        return bulletGap;
+    }
+
+    public int getLinkColor() {
+        return linkColor;
+    }
+
+    public boolean isLinkUnderline() {
+        return linkUnderline;
+    }
+
+    public int getQuoteColor() {
+        return quoteColor;
+    }
+
+    public int getQuoteStripeWidth() {
+        return quoteStripeWidth;
+    }
+
+    public int getQuoteGap() {
+        return quoteGap;
+    }
+
+    /**
+     * Style is a provider of itself, for spans which are not restyled.
+     */
+    @Override
+    public KnifeStyle getStyle() {
+        return this;
+    }
+
+    // Whether text styled with both styles has same layout, so that only colors differ
+    boolean hasSameLayout(KnifeStyle other) {
+        return bulletRadius == other.bulletRadius && bulletGap == other.bulletGap
+                && quoteStripeWidth == other.quoteStripeWidth && quoteGap == other.quoteGap;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof KnifeStyle)) {
+            return false;
+        }
+        final KnifeStyle other = (KnifeStyle) obj;
+        return hasSameLayout(other) && bulletColor == other.bulletColor
+                && linkColor == other.linkColor && linkUnderline == other.linkUnderline
+                && quoteColor == other.quoteColor;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = bulletColor;
+        result = 31 * result + bulletRadius;
+        result = 31 * result + bulletGap;
+        result = 31 * result + linkColor;
+        result = 31 * result + (linkUnderline ? 1 : 0);
+        result = 31 * result + quoteColor;
+        result = 31 * result + quoteStripeWidth;
+        result = 31 * result + quoteGap;
+        return result;
+    }
+
+
+    // Current style of an editor or a renderer. Does not reference its owner, since spans can
+    // outlive it, e.g. in copied text.
+    static class Holder implements KnifeStyleProvider {
+        KnifeStyle current;
+
+        @Override
+        public KnifeStyle getStyle() {
+            return current;
+        }
+    }
+
+}
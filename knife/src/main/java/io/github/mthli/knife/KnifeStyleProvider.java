@@ -0,0 +1,8 @@
+package io.github.mthli.knife;
+
+/**
+ * Source of the current {@link KnifeStyle}, referenced by spans instead of style values.
+ */
+public interface KnifeStyleProvider {
+    KnifeStyle getStyle();
+}
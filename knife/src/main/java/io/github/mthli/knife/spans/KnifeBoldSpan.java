@@ -4,7 +4,9 @@ import android.graphics.Typeface;
 import android.os.Parcel;
 import android.text.style.StyleSpan;
 
-public class KnifeBoldSpan extends StyleSpan {
+import io.github.mthli.knife.KnifeSpan;
+
+public class KnifeBoldSpan extends StyleSpan implements KnifeSpan.Bold {
 
     public static final int STYLE = Typeface.BOLD;
 
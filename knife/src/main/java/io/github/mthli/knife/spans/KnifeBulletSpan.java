@@ -24,39 +24,47 @@ import android.text.Layout;
 import android.text.Spanned;
 import android.text.style.BulletSpan;
 
-public class KnifeBulletSpan extends BulletSpan {
+import io.github.mthli.knife.KnifeSpan;
+import io.github.mthli.knife.KnifeStyle;
+import io.github.mthli.knife.KnifeStyleProvider;
+
+public class KnifeBulletSpan extends BulletSpan implements KnifeSpan.Bullet {
 
     private static Path bulletPath = null;
+    private static int bulletPathRadius;
 
-    private final int bulletColor;
-    private final int bulletRadius;
-    private final int bulletGap;
+    private final KnifeStyleProvider style;
 
     public KnifeBulletSpan(int bulletColor, int bulletRadius, int bulletGap) {
-        this.bulletColor = bulletColor;
-        this.bulletRadius = bulletRadius;
-        this.bulletGap = bulletGap;
+        this(KnifeStyle.EMPTY.withBullet(bulletColor, bulletRadius, bulletGap));
+    }
+
+    /**
+     * Creates span drawn with the current style of given provider.
+     */
+    public KnifeBulletSpan(KnifeStyleProvider style) {
+        this.style = style;
     }
 
     @SuppressWarnings("unused") // Parcelable implementation
     public KnifeBulletSpan(Parcel src) {
         super(src);
-        this.bulletColor = src.readInt();
-        this.bulletRadius = src.readInt();
-        this.bulletGap = src.readInt();
+        this.style = KnifeStyle.EMPTY.withBullet(src.readInt(), src.readInt(), src.readInt());
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
-        dest.writeInt(bulletColor);
-        dest.writeInt(bulletRadius);
-        dest.writeInt(bulletGap);
+        final KnifeStyle current = style.getStyle();
+        dest.writeInt(current.getBulletColor());
+        dest.writeInt(current.getBulletRadius());
+        dest.writeInt(current.getBulletGap());
     }
 
     @Override
     public int getLeadingMargin(boolean first) {
-        return 2 * bulletRadius + bulletGap;
+        final KnifeStyle current = style.getStyle();
+        return 2 * current.getBulletRadius() + current.getBulletGap();
     }
 
     @Override
@@ -66,15 +74,18 @@ public class KnifeBulletSpan extends BulletSpan {
             boolean first, Layout l) {
 
         if (((Spanned) text).getSpanStart(this) == start) {
+            final KnifeStyle current = this.style.getStyle();
+            final int bulletRadius = current.getBulletRadius();
             Paint.Style style = p.getStyle();
 
             int oldColor = p.getColor();
-            p.setColor(bulletColor);
+            p.setColor(current.getBulletColor());
             p.setStyle(Paint.Style.FILL);
 
             if (c.isHardwareAccelerated()) {
-                if (bulletPath == null) {
+                if (bulletPath == null || bulletPathRadius != bulletRadius) {
                     bulletPath = new Path();
+                    bulletPathRadius = bulletRadius;
                     // Bullet is slightly better to avoid aliasing artifacts on mdpi devices.
                     bulletPath.addCircle(0.0f, 0.0f, bulletRadius, Path.Direction.CW);
                 }
@@ -4,7 +4,9 @@ import android.graphics.Typeface;
 import android.os.Parcel;
 import android.text.style.StyleSpan;
 
-public class KnifeItalicSpan extends StyleSpan {
+import io.github.mthli.knife.KnifeSpan;
+
+public class KnifeItalicSpan extends StyleSpan implements KnifeSpan.Italic {
 
     public static final int STYLE = Typeface.ITALIC;
 
@@ -22,37 +22,44 @@ import android.os.Parcel;
 import android.text.Layout;
 import android.text.style.QuoteSpan;
 
-public class KnifeQuoteSpan extends QuoteSpan {
+import io.github.mthli.knife.KnifeSpan;
+import io.github.mthli.knife.KnifeStyle;
+import io.github.mthli.knife.KnifeStyleProvider;
 
-    private int quoteColor;
-    private int quoteStripeWidth;
-    private int quoteGap;
+public class KnifeQuoteSpan extends QuoteSpan implements KnifeSpan.Quote {
+
+    private final KnifeStyleProvider style;
 
     public KnifeQuoteSpan(int quoteColor, int quoteStripeWidth, int quoteGap) {
-        this.quoteColor = quoteColor;
-        this.quoteStripeWidth = quoteStripeWidth;
-        this.quoteGap = quoteGap;
+        this(KnifeStyle.EMPTY.withQuote(quoteColor, quoteStripeWidth, quoteGap));
+    }
+
+    /**
+     * Creates span drawn with the current style of given provider.
+     */
+    public KnifeQuoteSpan(KnifeStyleProvider style) {
+        this.style = style;
     }
 
     @SuppressWarnings("unused") // Parcelable implementation
     public KnifeQuoteSpan(Parcel src) {
         super(src);
-        this.quoteColor = src.readInt();
-        this.quoteStripeWidth = src.readInt();
-        this.quoteGap = src.readInt();
+        this.style = KnifeStyle.EMPTY.withQuote(src.readInt(), src.readInt(), src.readInt());
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
-        dest.writeInt(quoteColor);
-        dest.writeInt(quoteStripeWidth);
-        dest.writeInt(quoteGap);
+        final KnifeStyle current = style.getStyle();
+        dest.writeInt(current.getQuoteColor());
+        dest.writeInt(current.getQuoteStripeWidth());
+        dest.writeInt(current.getQuoteGap());
     }
 
     @Override
     public int getLeadingMargin(boolean first) {
-        return quoteStripeWidth + quoteGap;
+        final KnifeStyle current = style.getStyle();
+        return current.getQuoteStripeWidth() + current.getQuoteGap();
     }
 
     @Override
@@ -60,12 +67,13 @@ public class KnifeQuoteSpan extends QuoteSpan {
             int top, int baseline, int bottom,
             CharSequence text, int start, int end,
             boolean first, Layout layout) {
+        final KnifeStyle current = this.style.getStyle();
         Paint.Style style = p.getStyle();
         int color = p.getColor();
 
         p.setStyle(Paint.Style.FILL);
-        p.setColor(quoteColor);
-        c.drawRect(x, top, x + dir * quoteStripeWidth, bottom, p);
+        p.setColor(current.getQuoteColor());
+        c.drawRect(x, top, x + dir * current.getQuoteStripeWidth(), bottom, p);
 
         p.setStyle(style);
         p.setColor(color);
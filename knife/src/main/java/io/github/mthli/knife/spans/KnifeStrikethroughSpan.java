@@ -3,7 +3,9 @@ package io.github.mthli.knife.spans;
 import android.os.Parcel;
 import android.text.style.StrikethroughSpan;
 
-public class KnifeStrikethroughSpan extends StrikethroughSpan {
+import io.github.mthli.knife.KnifeSpan;
+
+public class KnifeStrikethroughSpan extends StrikethroughSpan implements KnifeSpan.Strike {
 
     public KnifeStrikethroughSpan() {
     }
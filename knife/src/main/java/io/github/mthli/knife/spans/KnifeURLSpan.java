@@ -20,35 +20,45 @@ import android.os.Parcel;
 import android.text.TextPaint;
 import android.text.style.URLSpan;
 
-public class KnifeURLSpan extends URLSpan {
+import io.github.mthli.knife.KnifeSpan;
+import io.github.mthli.knife.KnifeStyle;
+import io.github.mthli.knife.KnifeStyleProvider;
 
-    private int linkColor;
-    private boolean linkUnderline;
+public class KnifeURLSpan extends URLSpan implements KnifeSpan.Link {
+
+    private final KnifeStyleProvider style;
 
     public KnifeURLSpan(String url, int linkColor, boolean linkUnderline) {
+        this(url, KnifeStyle.EMPTY.withLink(linkColor, linkUnderline));
+    }
+
+    /**
+     * Creates span drawn with the current style of given provider.
+     */
+    public KnifeURLSpan(String url, KnifeStyleProvider style) {
         super(url);
-        this.linkColor = linkColor;
-        this.linkUnderline = linkUnderline;
+        this.style = style;
     }
 
     @SuppressWarnings("unused") // Parcelable implementation
     public KnifeURLSpan(Parcel src) {
         super(src);
-        this.linkColor = src.readInt();
-        this.linkUnderline = src.readInt() != 0;
+        this.style = KnifeStyle.EMPTY.withLink(src.readInt(), src.readInt() != 0);
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
-        dest.writeInt(linkColor);
-        dest.writeInt(linkUnderline ? 1 : 0);
+        final KnifeStyle current = style.getStyle();
+        dest.writeInt(current.getLinkColor());
+        dest.writeInt(current.isLinkUnderline() ? 1 : 0);
     }
 
     @Override
     public void updateDrawState(TextPaint ds) {
-        ds.setColor(linkColor != 0 ? linkColor : ds.linkColor);
-        ds.setUnderlineText(linkUnderline);
+        final KnifeStyle current = style.getStyle();
+        ds.setColor(current.getLinkColor() != 0 ? current.getLinkColor() : ds.linkColor);
+        ds.setUnderlineText(current.isLinkUnderline());
     }
 
 }
@@ -3,7 +3,9 @@ package io.github.mthli.knife.spans;
 import android.os.Parcel;
 import android.text.style.UnderlineSpan;
 
-public class KnifeUnderlineSpan extends UnderlineSpan {
+import io.github.mthli.knife.KnifeSpan;
+
+public class KnifeUnderlineSpan extends UnderlineSpan implements KnifeSpan.Underline {
 
     public KnifeUnderlineSpan() {
     }